@@ -0,0 +1,96 @@
+package bench;
+
+import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+
+import client.Client;
+import common.ChatMessage;
+import common.Message;
+import common.MessageFactory;
+import common.MsgType;
+import server.ChatOp;
+import server.Generator;
+
+/**
+ * Hot paths of the RMI chat: message creation and formatting, command
+ * parsing, serialization of every Message subtype and nickname lookup at
+ * 10, 1k and 100k users. JSON results go to stdout, or to the file given.
+ * Run with: java bench.HotPathBench [results.json]
+ */
+public class HotPathBench
+{
+    public static void main(String[] args) throws Exception {
+        // keep the journal out of the in-memory numbers
+        System.setProperty("chat.journal.dir", "off");
+        Harness h = new Harness();
+        final MessageFactory factory = new MessageFactory();
+        final Message chat = factory.createMessage(MsgType.MSG_CHAT, "bob", "hey, are you coming tonight?");
+        final Message broadcast = factory.createMessage(MsgType.MSG_BROADCAST, null, "server restarts in 5 minutes");
+        ((ChatMessage) chat).mSource = "alice";
+        ((ChatMessage) broadcast).mSource = "alice";
+
+        h.measure("MessageFactory.createMessage.chat", null, null,
+            () -> factory.createMessage(MsgType.MSG_CHAT, "bob", "hello"));
+        h.measure("MessageFactory.createMessage.list", null, null,
+            () -> factory.createMessage(MsgType.MSG_LIST));
+        h.measure("ChatMessage.stringFormat", null, null, () -> chat.stringFormat());
+        h.measure("BroadcastMessage.stringFormat", null, null, () -> broadcast.stringFormat());
+
+        // parse commands as a logged in user would type them
+        Method setLoggedIn = Class.forName("client.ClientStatus").getMethod("setLoggedIn", Boolean.class);
+        setLoggedIn.setAccessible(true);
+        setLoggedIn.invoke(null, Boolean.TRUE);
+        h.measure("Client.parseMessage.send", null, null,
+            () -> Client.parseMessage("send bob hey, are you coming tonight?"));
+        h.measure("Client.parseMessage.broad", null, null,
+            () -> Client.parseMessage("broad server restarts in 5 minutes"));
+        h.measure("Client.parseMessage.ls", null, null, () -> Client.parseMessage("ls"));
+
+        Message[] all = {
+            factory.createMessage(MsgType.MSG_HANDSHAKE, "alice"),
+            chat,
+            broadcast,
+            factory.createMessage(MsgType.MSG_LIST),
+            factory.createMessage(MsgType.MSG_DISCONNECT),
+        };
+        for (final Message msg : all) {
+            h.measure("serialize." + msg.getClass().getSimpleName(), null, null, () -> serialize(msg));
+        }
+
+        // lookups only depend on the map size, one ChatOp stands in for everybody
+        Generator generator = new Generator();
+        ChatOp op = (ChatOp) generator.getNewServer();
+        for (int users : new int[] { 10, 1000, 100000 }) {
+            Generator.mDirectory.clear();
+            for (int i = 0; i < users; i++) {
+                Generator.mDirectory.put("user" + i, op);
+            }
+            final String[] probes = new String[1024];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = "user" + (i * 7919 % users);
+            }
+            final int[] next = { 0 };
+            h.measure("Generator.getUserInterface", "users", Integer.toString(users),
+                () -> generator.getUserInterface(probes[next[0]++ & 1023]));
+        }
+
+        if (args.length > 0) {
+            FileWriter out = new FileWriter(args[0]);
+            out.write(h.json());
+            out.close();
+        } else {
+            System.out.println(h.json());
+        }
+        System.exit(0);
+    }
+
+    static byte[] serialize(Object obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.ArrayList;
+
+import server.Generator;
+import server.Logger;
+import service.IChatOp;
+
+/**
+ * Broadcast throughput of the RMI chat service (in process, no network)
+ * with per-message trace logging on and off. Every delivered message
+ * produces one trace line when tracing is on.
+ * Run with: java bench.LoggingBench [users] [broadcasts]
+ */
+public class LoggingBench
+{
+    public static void main(String[] args) throws Exception {
+        // keep the journal out of the in-memory numbers
+        System.setProperty("chat.journal.dir", "off");
+        System.setProperty("chat.limit.userRate", "0");
+        System.setProperty("chat.limit.globalRate", "0");
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        if (System.getProperty("chat.log.file") == null) {
+            System.setProperty("chat.log.file", "bench-chat.log");
+        }
+        Logger logger = Logger.getInstance();
+        Generator generator = new Generator();
+        ArrayList<IChatOp> ops = new ArrayList<IChatOp>();
+        for (int i = 0; i < users; i++) {
+            IChatOp op = generator.getNewServer();
+            op.login("user" + i);
+            ops.add(op);
+        }
+        IChatOp sender = ops.get(0);
+        Logger.Level[] levels = { Logger.Level.INFO, Logger.Level.TRACE, Logger.Level.INFO, Logger.Level.TRACE };
+        for (Logger.Level level : levels) {
+            logger.setLevel(level);
+            long t = System.nanoTime();
+            for (int i = 0; i < broadcasts; i++) {
+                sender.broadcast("message number " + i);
+            }
+            double seconds = (System.nanoTime() - t) / 1e9;
+            System.out.printf("trace %-3s %12.0f messages/s%n",
+                level == Logger.Level.TRACE ? "on" : "off", (double) users * broadcasts / seconds);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import server.Mailbox;
+
+/**
+ * Many senders hammer one mailbox while its owner drains it the way
+ * pollBatch does. Every message must arrive exactly once, or be counted
+ * as dropped by the overflow policy. The default capacity is far below
+ * what the senders put in, so most of it is dropped; a second round with
+ * room for everything must then drop nothing. Exits with status 1 on
+ * failure.
+ * Run with: java bench.MailboxStress [senders] [messagesPerSender] [capacity]
+ */
+public class MailboxStress
+{
+    public static void main(String[] args) throws Exception {
+        final int senders = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int perSender = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        boolean ok = true;
+        for (Mailbox.Policy policy : Mailbox.Policy.values()) {
+            ok &= run(capacity, policy, senders, perSender, false);
+        }
+        // the mailbox never fills: all of it has to get through
+        for (Mailbox.Policy policy : Mailbox.Policy.values()) {
+            ok &= run(senders * perSender, policy, senders, perSender, true);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    static boolean run(int capacity, Mailbox.Policy policy, int senders, final int perSender,
+        boolean lossless) throws Exception {
+        final Mailbox box = new Mailbox(capacity, policy);
+        final CountDownLatch done = new CountDownLatch(senders);
+        long start = System.nanoTime();
+        for (int s = 0; s < senders; s++) {
+            final int sender = s;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perSender; i++) {
+                        box.add(sender + ":" + i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        int total = senders * perSender;
+        boolean[] seen = new boolean[total];
+        int[] lastIndex = new int[senders];
+        java.util.Arrays.fill(lastIndex, -1);
+        long received = 0;
+        long duplicates = 0;
+        long reordered = 0;
+        ArrayList<String> batch = new ArrayList<String>();
+        while (done.getCount() > 0 || !box.isEmpty()) {
+            batch.clear();
+            String first = box.poll(10);
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            box.drainTo(batch, 63);
+            for (String message : batch) {
+                int colon = message.indexOf(':');
+                int sender = Integer.parseInt(message.substring(0, colon));
+                int index = Integer.parseInt(message.substring(colon + 1));
+                int id = sender * perSender + index;
+                if (seen[id]) {
+                    duplicates++;
+                }
+                seen[id] = true;
+                if (index <= lastIndex[sender]) {
+                    reordered++;
+                }
+                lastIndex[sender] = index;
+                received++;
+            }
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        long dropped = box.mDropped.get();
+        boolean ok = duplicates == 0 && reordered == 0 && received + dropped == total;
+        if (lossless) {
+            ok &= received == total && dropped == 0;
+        }
+        System.out.printf("%-12s capacity=%-8d sent=%d received=%d dropped=%d duplicates=%d reordered=%d %dms %s%n",
+            policy, capacity, total, received, dropped, duplicates, reordered, ms,
+            ok ? "OK" : "FAILED");
+        return ok;
+    }
+}
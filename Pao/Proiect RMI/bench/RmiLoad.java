@@ -0,0 +1,149 @@
+package bench;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import service.IChatListener;
+import service.IChatOp;
+import service.IGenerator;
+
+/**
+ * Load generator for the RMI server. Opens N sessions through
+ * ChatServiceGenerator, logs them in with a pushed listener each, then
+ * issues a send / broad / ls mix at a fixed total rate from a worker
+ * pool. Chat bodies carry the send time, so delivery latency is measured
+ * when the push reaches another simulated client.
+ *
+ * Run with: java bench.RmiLoad [key=value ..]
+ *   host=localhost port=63000 sessions=200 rate=500 (ops/s) seconds=30
+ *   mix=80:10:10 (send:broad:ls) workers=32
+ * The server refuses more than chat.limit.userRate requests per session;
+ * start it with -Dchat.limit.userRate=0 to load it past that.
+ */
+public class RmiLoad
+{
+    static LatencyHistogram latency = new LatencyHistogram();
+    static AtomicLong sent = new AtomicLong();
+    static AtomicLong replies = new AtomicLong();
+    static AtomicLong delivered = new AtomicLong();
+    static AtomicLong errors = new AtomicLong();
+
+    static class Listener extends UnicastRemoteObject implements IChatListener {
+        Listener() throws RemoteException {
+            super();
+        }
+        public void deliver(String message) {
+            long now = System.nanoTime();
+            int mark = message.lastIndexOf("\"lg ");
+            if (mark >= 0) {
+                int stop = message.indexOf('"', mark + 4);
+                latency.record((now - Long.parseLong(message.substring(mark + 4, stop))) / 1000);
+                delivered.incrementAndGet();
+            }
+        }
+        public void ping() { }
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> opt = options(args);
+        String host = opt.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(opt.getOrDefault("port", "63000"));
+        final int sessions = Integer.parseInt(opt.getOrDefault("sessions", "200"));
+        int rate = Integer.parseInt(opt.getOrDefault("rate", "500"));
+        int seconds = Integer.parseInt(opt.getOrDefault("seconds", "30"));
+        int workers = Integer.parseInt(opt.getOrDefault("workers", "32"));
+        String[] mix = opt.getOrDefault("mix", "80:10:10").split(":");
+        final int sendWeight = Integer.parseInt(mix[0]);
+        final int broadWeight = Integer.parseInt(mix[1]);
+        int lsWeight = Integer.parseInt(mix[2]);
+
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        IGenerator srv = (IGenerator) registry.lookup("ChatServiceGenerator");
+        final String prefix = "lg" + Long.toString(System.nanoTime() % 100000, 36) + "_";
+        final ArrayList<IChatOp> ops = new ArrayList<IChatOp>();
+        for (int i = 0; i < sessions; i++) {
+            IChatOp op = srv.getNewServer();
+            if (!op.login(prefix + i)) {
+                errors.incrementAndGet();
+            }
+            op.subscribe(new Listener());
+            ops.add(op);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final Random random = new Random();
+        final int totalWeight = sendWeight + broadWeight + lsWeight;
+        long interval = 1000000000L / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long next = start;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            final IChatOp op = ops.get(random.nextInt(sessions));
+            final int pick = random.nextInt(totalWeight);
+            final String to = prefix + random.nextInt(sessions);
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        boolean ok = true;
+                        if (pick < sendWeight) {
+                            ok = op.send(to, "lg " + System.nanoTime());
+                        } else if (pick < sendWeight + broadWeight) {
+                            ok = op.broadcast("lg " + System.nanoTime());
+                        } else {
+                            op.list();
+                        }
+                        (ok ? replies : errors).incrementAndGet();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            sent.incrementAndGet();
+            next += interval;
+        }
+        pool.shutdown();
+        pool.awaitTermination(30, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(2000);
+        System.out.printf("ops sent       %d (%.0f/s)%n", sent.get(), sent.get() / elapsed);
+        System.out.printf("replies        %d%n", replies.get());
+        System.out.printf("delivered      %d (%.0f/s)%n", delivered.get(), delivered.get() / elapsed);
+        System.out.printf("errors         %d%n", errors.get());
+        System.out.printf("latency ms     p50 %.3f  p99 %.3f  p999 %.3f%n",
+            latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+            latency.percentile(0.999) / 1000.0);
+        for (IChatOp op : ops) {
+            try {
+                op.terminate();
+            } catch (Exception e) {
+                // server gone
+            }
+        }
+        System.exit(0);
+    }
+
+    static HashMap<String, String> options(String[] args) {
+        HashMap<String, String> opt = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                opt.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        return opt;
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import client.ChatClient;
+import client.SendResult;
+
+/**
+ * Pipelined sends through client.ChatClient: one bot session fires
+ * count chats at a sink session without waiting for replies, then
+ * reports the send rate, the reply latency (request to its tagged
+ * reply) and how many chats reached the sink.
+ *
+ * Run with: java bench.SdkLoad [key=value ..]
+ *   host=localhost port=63000 count=200000 window=10000 (replies outstanding)
+ * Start the server with -Dchat.limit.userRate=0, the bot is one session.
+ * The sink's mailbox drops the oldest past chat.mailbox.capacity when the
+ * pushes fall behind; raise it to count every delivery.
+ */
+public class SdkLoad
+{
+    static LatencyHistogram latency = new LatencyHistogram();
+    static AtomicLong received = new AtomicLong();
+    static AtomicLong ok = new AtomicLong();
+    static AtomicLong failed = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        java.util.HashMap<String, String> opt = RmiLoad.options(args);
+        String host = opt.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(opt.getOrDefault("port", "63000"));
+        int count = Integer.parseInt(opt.getOrDefault("count", "200000"));
+        final java.util.concurrent.Semaphore window =
+            new java.util.concurrent.Semaphore(Integer.parseInt(opt.getOrDefault("window", "10000")));
+        String prefix = "sdk" + Long.toString(System.nanoTime() % 100000, 36) + "_";
+
+        ChatClient sink = ChatClient.connect(host, port, new ChatClient.Listener() {
+            public void message(String text) {
+                if (text.startsWith("User ")) {
+                    received.incrementAndGet();
+                }
+            }
+            public void closed(Exception cause) { }
+        });
+        ChatClient bot = ChatClient.connect(host, port, null);
+        if (!sink.login(prefix + "sink").get(10, TimeUnit.SECONDS) || !bot.login(prefix + "bot").get(10, TimeUnit.SECONDS)) {
+            System.out.println("login refused");
+            System.exit(1);
+        }
+
+        final CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            window.acquire();
+            final long sent = System.nanoTime();
+            bot.send(prefix + "sink", "sdk " + i).whenComplete(new BiConsumer<SendResult, Throwable>() {
+                public void accept(SendResult result, Throwable error) {
+                    latency.record((System.nanoTime() - sent) / 1000);
+                    if (error == null && result.ok()) {
+                        ok.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                    window.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // let the deliveries to the sink settle
+        long seen = -1;
+        for (int i = 0; i < 100 && seen != received.get(); i++) {
+            seen = received.get();
+            Thread.sleep(500);
+        }
+        System.out.printf("sends          %d in %.2f s (%.0f/s)%n", count, seconds, count / seconds);
+        System.out.printf("replies        ok %d  failed %d%n", ok.get(), failed.get());
+        System.out.printf("received       %d%n", received.get());
+        System.out.printf("reply ms       p50 %.3f  p99 %.3f  p999 %.3f%n",
+            latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+            latency.percentile(0.999) / 1000.0);
+        bot.close();
+        sink.close();
+        Thread.sleep(200);
+        System.exit(0);
+    }
+}
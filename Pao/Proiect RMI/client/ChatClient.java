@@ -0,0 +1,477 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import common.HandshakeMessage;
+import common.Message;
+import common.MessageFactory;
+import common.MsgType;
+import service.BatchResult;
+import service.IChatListener;
+import service.IChatOp;
+import service.IGenerator;
+
+/**
+ * Client library for bots and integrations. Every call returns at once
+ * with a CompletableFuture. A sender thread packs whatever was requested
+ * meanwhile into one IChatOp.batch call (at most MAX_BATCH operations)
+ * and completes the futures from the replies, which come back in the
+ * order of the operations, so many requests are in flight per round trip.
+ *
+ *   ChatClient bot = ChatClient.connect("localhost", 63000, new ChatClient.Listener() {
+ *       public void message(String text) { ... }
+ *       public void closed(Exception cause) { ... }
+ *   });
+ *   bot.login("bot").get();
+ *   bot.send("alice", "hi").thenAccept(r -> ...);
+ *
+ * Messages from others are pushed to an exported IChatListener; when the
+ * server can't call back they are drained with every batch and long
+ * polled in between. watch() keeps a copy of who is online, updated by
+ * the server's presence deltas; roster() reads it. Futures complete on the sender thread and the
+ * listener runs on RMI or poller threads, so both should hand long work
+ * elsewhere. At most chat.client.maxPending requests (default 65536) wait
+ * for a reply. The server rate limits each session (chat.limit.userRate).
+ */
+public class ChatClient implements Closeable
+{
+    public interface Listener {
+        /** A chat, broadcast or room message from somebody else. */
+        void message(String text);
+        /** The session is gone; cause is null after close(). */
+        void closed(Exception cause);
+        /** Somebody came or left, while watching presence. */
+        default void presence(String name, boolean online) { }
+    }
+
+    static final int MAX_PENDING = Integer.getInteger("chat.client.maxPending", 65536);
+    static final int MAX_BATCH = 256;
+    static final int POLL_BATCH = 64;
+    static final long POLL_WAIT_MS = 25000;
+
+    /** One request and the future its reply completes. */
+    static class Pending {
+        final Message mMessage;
+        final CompletableFuture<String> mReply = new CompletableFuture<String>();
+        Pending(Message message) {
+            mMessage = message;
+        }
+    }
+    // queued by close() after everything else
+    static final Pending CLOSE = new Pending(null);
+
+    class Callback extends UnicastRemoteObject implements IChatListener {
+        Callback() throws RemoteException {
+            super();
+        }
+        public void deliver(String message) {
+            inbound(message);
+        }
+        public void ping() { }
+    }
+
+    private IChatOp mOp;
+    private Listener mListener;
+    private Callback mCallback;
+    private MessageFactory mFactory = new MessageFactory();
+    private LinkedBlockingQueue<Pending> mOut = new LinkedBlockingQueue<Pending>();
+    private AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mClosed = false;
+    private volatile boolean mClosing = false;
+    // presence mirror; mVersion is -1 until a whole snapshot arrived
+    private ConcurrentSkipListSet<String> mRoster = new ConcurrentSkipListSet<String>();
+    private volatile long mVersion = -1;
+    private long mSnapshotVersion;
+    private int mSnapshotParts;
+    private volatile boolean mWatch = false;
+    private volatile CompletableFuture<Long> mWatching;
+
+    private ChatClient(IChatOp op, Listener listener) {
+        mOp = op;
+        mListener = listener;
+    }
+
+    /** Opens a session; log in before anything else. */
+    public static ChatClient connect(String host, int port, Listener listener) throws Exception {
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        IGenerator srv = (IGenerator) registry.lookup("ChatServiceGenerator");
+        final ChatClient client = new ChatClient(srv.getNewServer(), listener);
+        try {
+            client.mCallback = client.new Callback();
+            client.mOp.subscribe(client.mCallback);
+        } catch (Exception e) {
+            client.mCallback = null;
+            Thread poller = new Thread(new Runnable() {
+                public void run() {
+                    client.pollLoop();
+                }
+            }, "chat-client-poller");
+            poller.setDaemon(true);
+            poller.start();
+        }
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                client.sendLoop();
+            }
+        }, "chat-client-sender");
+        sender.setDaemon(true);
+        sender.start();
+        return client;
+    }
+
+    /** True when the server gave us the name. */
+    public CompletableFuture<Boolean> login(String nickname) {
+        // not a batch operation; the sender makes the call in order with the rest
+        return request(mFactory.createMessage(MsgType.MSG_HANDSHAKE, nickname), new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                return reply.startsWith("Name set");
+            }
+        });
+    }
+
+    public CompletableFuture<SendResult> send(String to, String body) {
+        return request(mFactory.createMessage(MsgType.MSG_CHAT, to, body), RESULT);
+    }
+
+    public CompletableFuture<SendResult> broadcast(String body) {
+        return request(mFactory.createMessage(MsgType.MSG_BROADCAST, null, body), RESULT);
+    }
+
+    public CompletableFuture<SendResult> room(String room, String body) {
+        return request(mFactory.createMessage(MsgType.MSG_ROOM, room, body), RESULT);
+    }
+
+    public CompletableFuture<String> join(String room) {
+        return request(mFactory.createMessage(MsgType.MSG_JOIN, room));
+    }
+
+    public CompletableFuture<String> leave(String room) {
+        return request(mFactory.createMessage(MsgType.MSG_LEAVE, room));
+    }
+
+    /** Nicknames of all the users online, asked for page by page. */
+    public CompletableFuture<List<String>> list() {
+        return listFrom(null, new ArrayList<String>());
+    }
+
+    private CompletableFuture<List<String>> listFrom(String after, final ArrayList<String> all) {
+        return request(mFactory.createMessage(MsgType.MSG_LIST, null, after, 0)).thenCompose(
+            new Function<String, CompletionStage<List<String>>>() {
+                public CompletionStage<List<String>> apply(String reply) {
+                    all.addAll(names(reply));
+                    String next = nextPage(reply);
+                    if (next == null) {
+                        return CompletableFuture.completedFuture((List<String>) all);
+                    }
+                    return listFrom(next, all);
+                }
+            });
+    }
+
+    /**
+     * One page, in name order: at most count names (0 = the server's page
+     * size) starting with prefix, after the name after. Go on with the last
+     * name of a page until a page comes back empty.
+     */
+    public CompletableFuture<List<String>> list(String prefix, String after, int count) {
+        return request(mFactory.createMessage(MsgType.MSG_LIST, prefix, after, count), new Function<String, List<String>>() {
+            public List<String> apply(String reply) {
+                return names(reply);
+            }
+        });
+    }
+
+    /** The names of a list reply or of a presence line. */
+    static List<String> names(String reply) {
+        int colon = reply.indexOf(":   ");
+        String names = colon < 0 ? "" : reply.substring(colon + 4).trim();
+        return names.length() == 0 ? new ArrayList<String>() : Arrays.asList(names.split(",\\s+"));
+    }
+
+    /** Where the next page starts, null when this was the last one. */
+    static String nextPage(String reply) {
+        String more = "Online users (more after ";
+        int end = reply.indexOf("):   ");
+        return reply.startsWith(more) && end > more.length() ? reply.substring(more.length(), end) : null;
+    }
+
+    /**
+     * Starts presence updates; completes with the version once the whole
+     * snapshot is in roster(). Missed updates make it watch again.
+     */
+    public CompletableFuture<Long> watch() {
+        final CompletableFuture<Long> ready = new CompletableFuture<Long>();
+        mWatching = ready;
+        mWatch = true;
+        request(mFactory.createMessage(MsgType.MSG_PRESENCE, true)).whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String reply, Throwable error) {
+                if (error != null) {
+                    ready.completeExceptionally(error);
+                } else if (reply.compareTo("Watching presence") != 0) {
+                    ready.completeExceptionally(new IOException(reply));
+                }
+            }
+        });
+        return ready;
+    }
+
+    public CompletableFuture<String> unwatch() {
+        mWatch = false;
+        mVersion = -1;
+        return request(mFactory.createMessage(MsgType.MSG_PRESENCE, false));
+    }
+
+    /** Who is online as of presenceVersion(); empty unless watching. */
+    public Set<String> roster() {
+        return Collections.unmodifiableSet(mRoster);
+    }
+
+    /** Version of roster(), -1 while the snapshot is still coming. */
+    public long presenceVersion() {
+        return mVersion;
+    }
+
+    /** Any other request; completes with the server's reply text. */
+    public CompletableFuture<String> request(Message msg) {
+        Pending pending = new Pending(msg);
+        if (mClosed || mClosing) {
+            pending.mReply.completeExceptionally(new IOException("session closed"));
+            return pending.mReply;
+        }
+        if (mPending.incrementAndGet() > MAX_PENDING) {
+            mPending.decrementAndGet();
+            pending.mReply.completeExceptionally(new IOException("too many requests waiting for a reply"));
+            return pending.mReply;
+        }
+        mOut.add(pending);
+        if (mClosed) {
+            // lost the race with the sender going down
+            fail(pending, new IOException("session closed"));
+        }
+        return pending.mReply;
+    }
+
+    <T> CompletableFuture<T> request(Message msg, Function<String, T> convert) {
+        return request(msg).thenApply(convert);
+    }
+
+    static final Function<String, SendResult> RESULT = new Function<String, SendResult>() {
+        public SendResult apply(String reply) {
+            return SendResult.of(reply);
+        }
+    };
+
+    public int pending() {
+        return mPending.get();
+    }
+
+    /** Sends what is queued, then ends the session. */
+    public void close() {
+        if (mClosed || mClosing) {
+            return;
+        }
+        mClosing = true;
+        mOut.add(CLOSE);
+    }
+
+    /** Takes everything queued, up to MAX_BATCH, and makes one call of it. */
+    void sendLoop() {
+        ArrayList<Pending> taken = new ArrayList<Pending>();
+        ArrayList<Message> ops = new ArrayList<Message>();
+        try {
+            while (true) {
+                taken.clear();
+                ops.clear();
+                taken.add(mOut.take());
+                mOut.drainTo(taken, MAX_BATCH - 1);
+                for (Pending p : taken) {
+                    if (p == CLOSE) {
+                        call(ops, taken);
+                        mOp.terminate();
+                        shutdown(null);
+                        return;
+                    }
+                    if (p.mMessage.getType() == MsgType.MSG_HANDSHAKE) {
+                        // login has no batch form: send what came before it, then log in
+                        call(ops, taken);
+                        Boolean verdict = mOp.login(((HandshakeMessage) p.mMessage).name);
+                        complete(p, verdict ? p.mMessage.stringFormat() : "Invalid name, try again:");
+                        continue;
+                    }
+                    ops.add(p.mMessage);
+                }
+                call(ops, taken);
+            }
+        } catch (InterruptedException e) {
+            failAll(taken, null);
+        } catch (Exception e) {
+            failAll(taken, e);
+        }
+    }
+
+    /** Fails what the sender had in hand, then everything still queued. */
+    private void failAll(ArrayList<Pending> taken, Exception cause) {
+        IOException failure = new IOException("session closed", cause);
+        for (Pending p : taken) {
+            fail(p, failure);
+        }
+        shutdown(cause);
+    }
+
+    /** One batch call for ops; completes the futures of the first ops.size() still open in taken. */
+    private void call(ArrayList<Message> ops, ArrayList<Pending> taken) throws RemoteException {
+        if (ops.isEmpty()) {
+            return;
+        }
+        BatchResult result = mOp.batch(ops, mCallback == null ? POLL_BATCH : 0);
+        int next = 0;
+        for (Pending p : taken) {
+            if (next == result.replies.size()) {
+                break;
+            }
+            if (p != CLOSE && !p.mReply.isDone() && p.mMessage.getType() != MsgType.MSG_HANDSHAKE) {
+                complete(p, result.replies.get(next++));
+            }
+        }
+        ops.clear();
+        for (String message : result.messages) {
+            inbound(message);
+        }
+    }
+
+    private void complete(Pending p, String reply) {
+        if (p.mReply.complete(reply)) {
+            mPending.decrementAndGet();
+        }
+    }
+
+    private void fail(Pending p, IOException failure) {
+        if (p != CLOSE && p.mReply.completeExceptionally(failure)) {
+            mPending.decrementAndGet();
+        }
+    }
+
+    void pollLoop() {
+        try {
+            while (!mClosed) {
+                for (String message : mOp.pollBatch(POLL_BATCH, POLL_WAIT_MS)) {
+                    inbound(message);
+                }
+            }
+        } catch (Exception e) {
+            shutdown(e);
+        }
+    }
+
+    /** A message pushed, drained or polled: presence updates are kept here, the rest go to the listener. */
+    void inbound(String message) {
+        if (message.startsWith("Presence v")) {
+            presence(message);
+        } else if (mListener != null) {
+            mListener.message(message);
+        }
+    }
+
+    /** Applies a snapshot part or a delta; pushes and polls may call it from different threads. */
+    private synchronized void presence(String text) {
+        if (!mWatch) {
+            return;
+        }
+        int colon = text.indexOf(':');
+        String[] head = text.substring("Presence v".length(), colon < 0 ? text.length() : colon).split(" ");
+        long version = Long.parseLong(head[0]);
+        List<String> names = names(text);
+        if (head.length == 3) {
+            // "<version> snapshot <part>/<parts>"
+            int slash = head[2].indexOf('/');
+            int part = Integer.parseInt(head[2].substring(0, slash));
+            int parts = Integer.parseInt(head[2].substring(slash + 1));
+            if (part == 1) {
+                mVersion = -1;
+                mRoster.clear();
+                mSnapshotVersion = version;
+                mSnapshotParts = 0;
+            }
+            if (version != mSnapshotVersion || part != mSnapshotParts + 1) {
+                rewatch();
+                return;
+            }
+            mSnapshotParts = part;
+            mRoster.addAll(names);
+            if (part == parts) {
+                mVersion = version;
+                CompletableFuture<Long> ready = mWatching;
+                if (ready != null) {
+                    ready.complete(version);
+                }
+            }
+            return;
+        }
+        if (mVersion < 0) {
+            // left over from before the snapshot, which has it already
+            return;
+        }
+        if (version != mVersion + 1) {
+            rewatch();
+            return;
+        }
+        mVersion = version;
+        for (String change : names) {
+            boolean online = change.charAt(0) == '+';
+            String name = change.substring(1);
+            if (online) {
+                mRoster.add(name);
+            } else {
+                mRoster.remove(name);
+            }
+            if (mListener != null) {
+                mListener.presence(name, online);
+            }
+        }
+    }
+
+    /** An update went missing; start over from a new snapshot. */
+    private void rewatch() {
+        mVersion = -1;
+        request(mFactory.createMessage(MsgType.MSG_PRESENCE, true));
+    }
+
+    private synchronized void shutdown(Exception cause) {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mCallback != null) {
+            try {
+                UnicastRemoteObject.unexportObject(mCallback, true);
+            } catch (Exception e) {
+                // not exported any more
+            }
+        }
+        IOException failure = new IOException("session closed", cause);
+        Pending p;
+        while ((p = mOut.poll()) != null) {
+            fail(p, failure);
+        }
+        if (mListener != null) {
+            mListener.closed(cause);
+        }
+    }
+}
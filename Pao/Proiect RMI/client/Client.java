@@ -3,8 +3,12 @@ package client;
 
 import java.rmi.*;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.*;
 import java.rmi.registry.*;
+import java.rmi.server.*;
 import service.*;
 import common.*;
 
@@ -18,20 +22,34 @@ class ClientStatus {
     }
 }
 
+class ClientCallback extends UnicastRemoteObject implements IChatListener
+{
+    public ClientCallback() throws RemoteException {
+        super();
+    }
+    public void deliver(String message) throws RemoteException {
+        System.out.println(message);
+    }
+    public void ping() throws RemoteException { }
+}
+
+/** Fallback when the server can't call us back: long polls in batches. */
 class ClientPoller extends Thread
 {
+    static final int BATCH = 64;
+    static final long WAIT_MS = 25000;
+
     IChatOp mOp;
     public ClientPoller(IChatOp op) {
         mOp = op;
+        setDaemon(true);
     }
     public void run() {
         try {
             while(true) {
-                String answer = mOp.poll();
-                if(answer != null) {
+                for (String answer : mOp.pollBatch(BATCH, WAIT_MS)) {
                     System.out.println(answer);
                 }
-                Thread.sleep(300);
             }
         } catch (Exception e) {
             System.out.println(e.getMessage());
@@ -39,9 +57,94 @@ class ClientPoller extends Thread
     }
 }
 
+/**
+ * Sends send / broad / ls commands in batches: whatever is typed or
+ * piped in within WINDOW_MS of the first command goes in one RMI call.
+ */
+class ClientBatcher extends Thread
+{
+    static final long WINDOW_MS = 5;
+    static final int MAX_BATCH = 256;
+
+    IChatOp mOp;
+    int mDrainMax;
+    LinkedBlockingQueue<Message> mPending = new LinkedBlockingQueue<Message>();
+    AtomicInteger mOutstanding = new AtomicInteger(0);
+
+    public ClientBatcher(IChatOp op, int drainMax) {
+        mOp = op;
+        mDrainMax = drainMax;
+        setDaemon(true);
+    }
+    public void submit(Message msg) {
+        mOutstanding.incrementAndGet();
+        mPending.add(msg);
+    }
+    /** Waits until everything submitted so far went out. */
+    public void flush() throws InterruptedException {
+        while (mOutstanding.get() > 0) {
+            Thread.sleep(1);
+        }
+    }
+    public void run() {
+        ArrayList<Message> ops = new ArrayList<Message>();
+        while (true) {
+            try {
+                ops.clear();
+                ops.add(mPending.take());
+                long deadline = System.nanoTime() + WINDOW_MS * 1000000;
+                while (ops.size() < MAX_BATCH) {
+                    Message next = mPending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    ops.add(next);
+                }
+                try {
+                    BatchResult result = mOp.batch(ops, mDrainMax);
+                    for (String reply : result.replies) {
+                        System.out.println(reply);
+                    }
+                    for (String message : result.messages) {
+                        System.out.println(message);
+                    }
+                }
+                catch(Exception e) {
+                    System.out.println(e.getMessage());
+                }
+                mOutstanding.addAndGet(-ops.size());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
+
 public class Client {
     
     private static MessageFactory messageFactoryInstance = new MessageFactory();
+    /** history <user|*> [count] [since <time>] [before <time>] */
+    static Message parseHistory(String[] tokens) {
+        int count = 20;
+        long since = 0;
+        long until = Long.MAX_VALUE;
+        for (int i = 2; i < tokens.length; i++) {
+            if (tokens[i].compareTo("since") == 0 && i + 1 < tokens.length) {
+                since = HistoryMessage.parseTime(tokens[++i]);
+            } else if (tokens[i].compareTo("before") == 0 && i + 1 < tokens.length) {
+                until = HistoryMessage.parseTime(tokens[++i]);
+            } else if (tokens[i].matches("[0-9]{1,6}")) {
+                count = Integer.parseInt(tokens[i]);
+            } else {
+                return null;
+            }
+            if (since < 0 || until < 0) {
+                return null;
+            }
+        }
+        return messageFactoryInstance.createMessage(MsgType.MSG_HISTORY, tokens[1], count, since, until);
+    }
+
     public static Message parseMessage(String msgText)
     {
         final String[] tokens = msgText.split(" ");
@@ -72,14 +175,58 @@ public class Client {
                 null,
                 String.join(" ", msgTokens)
             );
+        } else if (tokens[0].compareTo("join") == 0 && tokens.length == 2) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_JOIN, tokens[1]);
+        } else if (tokens[0].compareTo("leave") == 0 && tokens.length == 2) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_LEAVE, tokens[1]);
+        } else if (tokens[0].compareTo("room") == 0 && tokens.length >= 3) {
+            final String[] msgTokens = new String[tokens.length - 2];
+            for (int i = 2; i < tokens.length; i++) {
+                msgTokens[i - 2] = tokens[i];
+            }
+            msg = messageFactoryInstance.createMessage(
+                MsgType.MSG_ROOM,
+                tokens[1],
+                String.join(" ", msgTokens)
+            );
+        } else if (tokens[0].compareTo("history") == 0 && tokens.length >= 2) {
+            msg = parseHistory(tokens);
         } else if (tokens[0].compareTo("disconnect") == 0) {
             msg = messageFactoryInstance.createMessage(MsgType.MSG_DISCONNECT);
         } else if (tokens[0].compareTo("ls") == 0) {
-            msg = messageFactoryInstance.createMessage(MsgType.MSG_LIST);
+            msg = parseList(tokens);
+        } else if (tokens[0].compareTo("watch") == 0 && tokens.length == 1) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_PRESENCE, true);
+        } else if (tokens[0].compareTo("unwatch") == 0 && tokens.length == 1) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_PRESENCE, false);
         }
         return msg;
     }
 
+    /** ls [prefix] [count] [after <user>] */
+    static Message parseList(String[] tokens) {
+        String prefix = null;
+        String after = null;
+        int count = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].compareTo("after") == 0 && i + 1 < tokens.length) {
+                after = tokens[++i];
+            } else if (tokens[i].matches("[0-9]{1,6}")) {
+                count = Integer.parseInt(tokens[i]);
+            } else if (prefix == null) {
+                prefix = tokens[i];
+            } else {
+                return null;
+            }
+        }
+        return messageFactoryInstance.createMessage(MsgType.MSG_LIST, prefix, after, count);
+    }
+
+    /**
+     * Usage: java client.Client [poll]
+     * Messages are pushed through an exported ClientCallback; pass poll
+     * (or run where the server can't connect back) to long poll instead.
+     */
     public static void main(String[] args) throws Exception
     {
         final String IP = "localhost";
@@ -88,8 +235,23 @@ public class Client {
         IGenerator srv = (IGenerator) registry.lookup("ChatServiceGenerator");
         IChatOp op = srv.getNewServer();
 
-        ClientPoller cp = new ClientPoller(op);
-        cp.start();
+        boolean push = !(args.length > 0 && args[0].compareTo("poll") == 0);
+        ClientCallback callback = null;
+        if (push) {
+            try {
+                callback = new ClientCallback();
+                op.subscribe(callback);
+            } catch (Exception e) {
+                System.out.println("push delivery unavailable, polling instead");
+                push = false;
+            }
+        }
+        if (!push) {
+            ClientPoller cp = new ClientPoller(op);
+            cp.start();
+        }
+        ClientBatcher batcher = new ClientBatcher(op, push ? 0 : ClientPoller.BATCH);
+        batcher.start();
 
         System.out.println("Enter your nickname:");
         Scanner scan = new Scanner(System.in);
@@ -103,7 +265,11 @@ public class Client {
                     case MSG_DISCONNECT:
                     {
                         try {
+                            batcher.flush();
                             op.terminate();
+                            if (callback != null) {
+                                UnicastRemoteObject.unexportObject(callback, true);
+                            }
                             return;
                         }
                         catch(Exception e) {
@@ -130,47 +296,15 @@ public class Client {
                     }
                     break;
                     case MSG_LIST:
-                    {
-                        try {
-                            System.out.println(op.list());
-                        }
-                        catch(Exception e) {
-                            System.out.println(e.getMessage());
-                        }
-                    }
-                    break;
                     case MSG_CHAT:
-                    {
-                        ChatMessage cmsg = (ChatMessage) msg;
-                        Boolean verdict = false;
-                        try {
-                            verdict = op.send(cmsg.mDestination, cmsg.mBody);
-                            if (verdict) {
-                                System.out.println("Message sent");
-                            } else {
-                                System.out.println("Invalid recipient");
-                            }
-                        }
-                        catch(Exception e) {
-                            System.out.println(e.getMessage());
-                        }
-                    }
-                    break;
                     case MSG_BROADCAST:
+                    case MSG_JOIN:
+                    case MSG_LEAVE:
+                    case MSG_ROOM:
+                    case MSG_HISTORY:
+                    case MSG_PRESENCE:
                     {
-                        BroadcastMessage bmsg = (BroadcastMessage) msg;
-                        Boolean verdict = false;
-                        try {
-                            verdict = op.broadcast(bmsg.mBody);
-                            if (verdict) {
-                                System.out.println("Broadcast sent");
-                            } else {
-                                System.out.println("Broadcast failed");
-                            }
-                        }
-                        catch(Exception e) {
-                            System.out.println(e.getMessage());
-                        }
+                        batcher.submit(msg);
                     }
                     break;
                     default:
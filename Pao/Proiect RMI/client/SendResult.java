@@ -0,0 +1,50 @@
+package client;
+
+/** How the server answered a send, broadcast or room message. */
+public class SendResult
+{
+    public enum Status {
+        // handed to the recipient(s)
+        SENT,
+        // recipient offline, kept for its next login
+        SAVED,
+        // refused by the server's rate limiter, try again later
+        RATE_LIMITED,
+        // unknown recipient, not in the room, ...; see mReply
+        FAILED
+    }
+
+    public final Status mStatus;
+    // the server's reply as text
+    public final String mReply;
+
+    public SendResult(Status status, String reply) {
+        mStatus = status;
+        mReply = reply;
+    }
+
+    public boolean ok() {
+        return mStatus == Status.SENT || mStatus == Status.SAVED;
+    }
+
+    /** Sorts a reply string of the server into a status. */
+    public static SendResult of(String reply) {
+        Status status;
+        if (reply.compareTo("Message sent") == 0 || reply.compareTo("Broadcast sent") == 0
+                || reply.compareTo("Room message sent") == 0) {
+            status = Status.SENT;
+        } else if (reply.endsWith("is offline, message saved")) {
+            status = Status.SAVED;
+        } else if (reply.startsWith("Rate limit exceeded")) {
+            status = Status.RATE_LIMITED;
+        } else {
+            status = Status.FAILED;
+        }
+        return new SendResult(status, reply);
+    }
+
+    @Override
+    public String toString() {
+        return mStatus + ": " + mReply;
+    }
+}
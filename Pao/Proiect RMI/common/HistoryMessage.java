@@ -0,0 +1,66 @@
+package common;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Asks for the newest messages of one conversation: the chats with peer,
+ * or the broadcasts when peer is "*". Only messages sent in
+ * [since, until) are returned, at most count of them.
+ */
+public class HistoryMessage implements Message
+{
+    public static final String BROADCASTS = "*";
+
+    public String peer;
+    public int count = 20;
+    public long since = 0;
+    public long until = Long.MAX_VALUE;
+
+    public HistoryMessage() { }
+
+    @Override
+    public MsgType getType() {
+        return MsgType.MSG_HISTORY;
+    }
+
+    @Override
+    public String stringFormat() {
+        return BROADCASTS.compareTo(String.valueOf(this.peer)) == 0
+            ? "Broadcast history:"
+            : "History with " + this.peer + ":";
+    }
+
+    /** One line of history as the user sees it. */
+    public static String line(long time, String source, String destination, String body) {
+        return String.format(
+            "[%s] %s -> %s: \"%s\"",
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time)),
+            source,
+            destination == null ? "everybody" : destination,
+            body
+        );
+    }
+
+    /** "HH:mm" (today) or "yyyy-MM-ddTHH:mm" as epoch millis, -1 if it is neither. */
+    public static long parseTime(String text) {
+        try {
+            if (text.indexOf('T') > 0) {
+                return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm").parse(text).getTime();
+            }
+            Date clock = new SimpleDateFormat("HH:mm").parse(text);
+            Calendar at = Calendar.getInstance();
+            Calendar parsed = Calendar.getInstance();
+            parsed.setTime(clock);
+            at.set(Calendar.HOUR_OF_DAY, parsed.get(Calendar.HOUR_OF_DAY));
+            at.set(Calendar.MINUTE, parsed.get(Calendar.MINUTE));
+            at.set(Calendar.SECOND, 0);
+            at.set(Calendar.MILLISECOND, 0);
+            return at.getTimeInMillis();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
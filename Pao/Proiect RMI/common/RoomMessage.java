@@ -0,0 +1,25 @@
+
+package common;
+
+/** A chat to every member of a room; mDestination is the room name. */
+public class RoomMessage extends ChatMessage
+{
+    public RoomMessage() {
+        super();
+    }
+
+    @Override
+    public MsgType getType() {
+        return MsgType.MSG_ROOM;
+    }
+
+    @Override
+    public String stringFormat() {
+        return String.format(
+            "[%s] User %s says: \"%s\"",
+            this.mDestination,
+            this.mSource,
+            this.mBody
+        );
+    }
+}
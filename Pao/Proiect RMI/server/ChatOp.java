@@ -1,61 +1,266 @@
 
 package server;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.rmi.*; 
 import java.rmi.server.*;
 
-import service.IGenerator;
+import service.IChatListener;
+import service.BatchResult;
+import common.Message;
+import common.ChatMessage;
+import common.MsgType;
+import common.JoinMessage;
+import common.LeaveMessage;
+import common.HistoryMessage;
+import common.ListMessage;
+import common.PresenceMessage;
 
 public class ChatOp extends UnicastRemoteObject implements service.IChatOp
 {
     int m_ID;
-    IGenerator mRoot;
-    String mNickname = null;
+    Generator mRoot;
+    volatile String mNickname = null;
     Logger logger = Logger.getInstance();
-    Queue<String> messageQueue = new LinkedList<String>();
+    Mailbox messageQueue = new Mailbox(MAILBOX_CAPACITY, MAILBOX_POLICY);
+    // last time the owner called in (or took a push), read by Generator's sweeper
+    volatile long mLastSeen = System.currentTimeMillis();
+    // set when the client exported a listener, messages are then pushed to it
+    volatile IChatListener mListener = null;
+    AtomicBoolean mPushing = new AtomicBoolean(false);
+    // set while the sweeper's ping is out, one at a time
+    AtomicBoolean mPinging = new AtomicBoolean(false);
+    // ingress limit, see RateLimiter
+    TokenBucket mLimit = RateLimiter.forUser();
+    AtomicLong mRejected = new AtomicLong();
+    // journal positions delivered live, the rest is replayed at login
+    LiveWindow mLive = new LiveWindow();
+    // journal end just before the name was published, replayed from on a first login
+    volatile long mClaimMark = -1;
+    // rooms joined, left in one go on terminate
+    Set<String> mRooms = ConcurrentHashMap.newKeySet();
+    // handed out at, for Metrics.mLogin
+    long mCreatedAt = System.nanoTime();
 
-    ChatOp(IGenerator Root, int ID) throws RemoteException {
+    // mailbox settings, -Dchat.mailbox.capacity / -Dchat.mailbox.policy
+    static final int MAILBOX_CAPACITY = Integer.getInteger("chat.mailbox.capacity", 1000);
+    static final Mailbox.Policy MAILBOX_POLICY =
+        Mailbox.Policy.valueOf(System.getProperty("chat.mailbox.policy", "DROP_OLDEST"));
+    // most offline messages replayed at login, -Dchat.journal.replayMax
+    static final int REPLAY_MAX = Integer.getInteger("chat.journal.replayMax", 500);
+    // most messages in one history reply, -Dchat.history.maxPage
+    static final int HISTORY_MAX = Integer.getInteger("chat.history.maxPage", 200);
+
+    // longest wait for a listener to answer a push or ping, -Dchat.push.timeoutMs;
+    // applied by Server as sun.rmi.transport.tcp.responseTimeout
+    static final int PUSH_TIMEOUT_MS = Integer.getInteger("chat.push.timeoutMs", 5000);
+
+    // Pushes run here so a slow client never holds up the sender's RMI thread;
+    // one that stops answering holds a pusher for PUSH_TIMEOUT_MS at most.
+    static ExecutorService pushers = Executors.newFixedThreadPool(
+        Math.max(2, 2 * Runtime.getRuntime().availableProcessors()));
+
+    ChatOp(Generator Root, int ID) throws RemoteException {
         super();
         mRoot = Root;
         m_ID = ID;
     }
 
+    void touch() {
+        mLastSeen = System.currentTimeMillis();
+    }
+
     public Boolean login(String name) throws RemoteException  {
-        Boolean verdict = true;
-        for (String user : mRoot.getOnlineUserList()) {
-            if (user.compareTo(name) == 0) {
-                verdict = false;
-            }
-        }
-        if (name.length() == 0) {
-            verdict = false;
-        }
+        touch();
+        // taken before the name is visible: chats to it journaled from here on are not live yet
+        Journal journal = Generator.mJournal;
+        long mark = journal == null ? -1 : journal.end();
+        boolean renamed = mNickname == null || mNickname.compareTo(name) != 0;
+        Boolean verdict = admit(MsgType.MSG_HANDSHAKE) && name.length() > 0 && mRoot.claim(name, this);
         if (verdict) {
+            if (renamed) {
+                mClaimMark = mark;
+            }
+            if (mNickname == null) {
+                Metrics.mLogin.record(System.nanoTime() - mCreatedAt);
+            }
+            if (mNickname != null && renamed) {
+                signOff();
+                mRoot.release(mNickname, this);
+            }
             mNickname = name;
             logger.Log(mNickname + " set name..");
+            if (renamed) {
+                replay();
+            }
         }
         return verdict;
     }
 
+    /** Starts live delivery and queues what the user missed while offline. */
+    void replay() {
+        Journal journal = Generator.mJournal;
+        if (journal == null) {
+            return;
+        }
+        String name = mNickname;
+        long mark = mLive.open(journal);
+        Long from = journal.offset(name);
+        if (from == null && mClaimMark >= 0) {
+            // first login: what came in since the claim was neither live nor stored for later
+            from = mClaimMark;
+        }
+        try {
+            journal.markRead(name, mark);
+            if (from == null) {
+                return;
+            }
+            ArrayDeque<ChatMessage> backlog = new ArrayDeque<ChatMessage>();
+            int found = journal.backlog(name, from, mark, backlog, REPLAY_MAX);
+            if (found > backlog.size()) {
+                enqueue((found - backlog.size()) + " older offline messages skipped");
+            }
+            for (ChatMessage m : backlog) {
+                enqueue(m.stringFormat());
+            }
+        } catch (IOException e) {
+            logger.warn("journal replay for " + name + " failed: " + e.getMessage());
+        }
+    }
+
+    /** Remembers where the user stopped getting messages live. */
+    void signOff() {
+        Journal journal = Generator.mJournal;
+        if (journal == null || mNickname == null) {
+            return;
+        }
+        long end = mLive.close(journal);
+        if (end >= 0) {
+            try {
+                journal.markRead(mNickname, end);
+            } catch (IOException e) {
+                logger.warn("journal: can't store offset of " + mNickname + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Journals a chat or broadcast; -1 when there is no journal or the write failed. */
+    long record(byte kind, String destination, String body) {
+        Journal journal = Generator.mJournal;
+        if (journal == null) {
+            return -1;
+        }
+        try {
+            return journal.append(kind, System.currentTimeMillis(), mNickname, destination, body);
+        } catch (IOException e) {
+            logger.warn("journal append failed: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /** Whether the message at position goes to this user now rather than at its next login. */
+    boolean live(long position) {
+        return position < 0 || mLive.covers(position);
+    }
+
     public String getNickname() throws RemoteException {
         return mNickname;
     }
 
     public String list() throws RemoteException {
+        return list(null, null, 0);
+    }
+
+    /** One page of the users online, see Presence.page. */
+    public String list(String prefix, String after, int count) throws RemoteException {
+        touch();
+        if (!admit(MsgType.MSG_LIST)) {
+            return RateLimiter.REJECTED;
+        }
+        return listPage(prefix, after, count);
+    }
+
+    String listPage(String prefix, String after, int count) {
         logger.Log(mNickname + " requested online user list..");
-        ArrayList<String> userList = mRoot.getOnlineUserList();
-        String[] userArray = userList.toArray(new String[userList.size()]);
-        return "Online users:   " + String.join(",  ", userArray);
+        return Presence.page(prefix, after, count);
+    }
+
+    /** Starts or stops presence updates, which come like messages. */
+    public String watch(boolean on) throws RemoteException {
+        touch();
+        if (!admit(MsgType.MSG_PRESENCE)) {
+            return RateLimiter.REJECTED;
+        }
+        return presence(on);
+    }
+
+    String presence(boolean on) {
+        if (mNickname == null) {
+            return "Log in first";
+        }
+        PresenceMessage msg = new PresenceMessage();
+        msg.watch = on;
+        if (on) {
+            Presence.watch(this);
+        } else {
+            Presence.unwatch(this);
+        }
+        return msg.stringFormat();
     }
 
+    /** True when the message was delivered, or saved for a user who is offline. */
     public Boolean send(String destination, String body) throws RemoteException  {
-        service.IChatOp other = mRoot.getUserInterface(destination);
-        if (other == null) {
+        touch();
+        long start = System.nanoTime();
+        Boolean verdict = admit(MsgType.MSG_CHAT) && deliver(destination, body);
+        Metrics.mHandle.record(System.nanoTime() - start);
+        return verdict;
+    }
+
+    public Boolean broadcast(String body) throws RemoteException {
+        touch();
+        long start = System.nanoTime();
+        Boolean verdict = admit(MsgType.MSG_BROADCAST) && fanOut(body);
+        Metrics.mHandle.record(System.nanoTime() - start);
+        return verdict;
+    }
+
+    /**
+     * Checked before any work is done for the request, by every entry
+     * point and by batch for each op; taking messages (poll, pollBatch,
+     * subscribe) and terminate are free, like a disconnect.
+     */
+    boolean admit(MsgType type) {
+        if (RateLimiter.admit(mLimit, RateLimiter.cost(type))) {
+            Metrics.mMessages.incrementAndGet(type.ordinal());
+            return true;
+        }
+        mRejected.incrementAndGet();
+        return false;
+    }
+
+    Boolean deliver(String destination, String body) throws RemoteException {
+        if (mNickname == null) {
+            // nobody to journal it for
             return false;
-        } else {
+        }
+        long position = -1;
+        Journal journal = Generator.mJournal;
+        if (journal != null && destination != null
+                && (journal.known(destination) || mRoot.lookup(destination) != null)) {
+            position = record(Journal.CHAT, destination, body);
+        }
+        // looked up after the append, see LiveWindow
+        ChatOp other = mRoot.lookup(destination);
+        if (other != null && other.live(position)) {
             other.enqueue(String.format(
                 "User %s tells you: \"%s\"",
                 mNickname,
@@ -63,33 +268,337 @@ public class ChatOp extends UnicastRemoteObject implements service.IChatOp
             ));
             return true;
         }
+        return position >= 0;
     }
 
-    public Boolean broadcast(String body) throws RemoteException {
-        for (String user : mRoot.getOnlineUserList()) {
-            service.IChatOp other = mRoot.getUserInterface(user);
-            if (other != null) {
-                other.enqueue(String.format(
-                    "User %s broadcast to everybody: \"%s\"",
-                    mNickname,
-                    body
-                ));
+    Boolean fanOut(String body) throws RemoteException {
+        if (mNickname == null) {
+            return false;
+        }
+        long position = record(Journal.BROADCAST, null, body);
+        String message = String.format(
+            "User %s broadcast to everybody: \"%s\"",
+            mNickname,
+            body
+        );
+        // in-process calls on the directory, no RMI round trip per recipient
+        int recipients = 0;
+        for (ChatOp other : Generator.mDirectory.values()) {
+            if (other.live(position)) {
+                other.enqueue(message);
+                recipients++;
             }
         }
+        Metrics.mFanout.record(recipients);
         return true;
     }
     
+    public Boolean join(String room) throws RemoteException {
+        touch();
+        return admit(MsgType.MSG_JOIN) && enter(room);
+    }
+
+    Boolean enter(String room) {
+        if (mNickname == null || room == null || room.length() == 0) {
+            return false;
+        }
+        if (mRooms.add(room)) {
+            mRoot.joinRoom(room, this);
+        }
+        return true;
+    }
+
+    public Boolean leave(String room) throws RemoteException {
+        touch();
+        return admit(MsgType.MSG_LEAVE) && depart(room);
+    }
+
+    Boolean depart(String room) {
+        if (room == null || !mRooms.remove(room)) {
+            return false;
+        }
+        mRoot.leaveRoom(room, this);
+        return true;
+    }
+
+    public Boolean roomSend(String room, String body) throws RemoteException {
+        touch();
+        return admit(MsgType.MSG_ROOM) && say(room, body);
+    }
+
+    Boolean say(String room, String body) throws RemoteException {
+        if (room == null || !mRooms.contains(room)) {
+            return false;
+        }
+        Set<ChatOp> members = mRoot.roomMembers(room);
+        if (members == null) {
+            return false;
+        }
+        String message = String.format(
+            "[%s] User %s says: \"%s\"",
+            room,
+            mNickname,
+            body
+        );
+        int recipients = 0;
+        for (ChatOp other : members) {
+            other.enqueue(message);
+            recipients++;
+        }
+        Metrics.mFanout.record(recipients);
+        return true;
+    }
+
+    /** One page of the conversation with peer ("*" for the broadcasts), oldest first. */
+    public String history(String peer, int count, long since, long until) throws RemoteException {
+        touch();
+        if (!admit(MsgType.MSG_HISTORY)) {
+            return RateLimiter.REJECTED;
+        }
+        return historyPage(peer, count, since, until);
+    }
+
+    String historyPage(String peer, int count, long since, long until) {
+        HistoryMessage query = new HistoryMessage();
+        query.peer = peer;
+        Journal journal = Generator.mJournal;
+        if (mNickname == null) {
+            return "Log in first";
+        } else if (journal == null) {
+            return "No history is kept on this server";
+        } else if (peer == null) {
+            return "Invalid recipient";
+        }
+        String conversation = HistoryMessage.BROADCASTS.compareTo(peer) == 0
+            ? Journal.conversation(Journal.BROADCAST, null, null)
+            : Journal.conversation(Journal.CHAT, mNickname, peer);
+        StringBuilder reply = new StringBuilder(query.stringFormat());
+        for (Journal.Record r : journal.history(conversation, since, until, Math.min(count, HISTORY_MAX))) {
+            reply.append('\n').append(HistoryMessage.line(r.time, r.source, r.destination, r.body));
+        }
+        if (reply.indexOf("\n") < 0) {
+            reply.append(" no messages");
+        }
+        return reply.toString();
+    }
+
+    /**
+     * Runs several send / broadcast / list operations in one round trip,
+     * then drains up to drainMax waiting messages.
+     */
+    public BatchResult batch(ArrayList<Message> ops, int drainMax) throws RemoteException {
+        BatchResult result = new BatchResult();
+        touch();
+        for (Message msg : ops) {
+            if (!admit(msg.getType())) {
+                result.replies.add(RateLimiter.REJECTED);
+                continue;
+            }
+            long start = System.nanoTime();
+            switch(msg.getType()) {
+                case MSG_CHAT:
+                {
+                    ChatMessage cmsg = (ChatMessage) msg;
+                    if (mNickname == null) {
+                        result.replies.add("Log in first");
+                    } else if (!deliver(cmsg.mDestination, cmsg.mBody)) {
+                        result.replies.add("Invalid recipient");
+                    } else if (mRoot.lookup(cmsg.mDestination) == null) {
+                        result.replies.add("User " + cmsg.mDestination + " is offline, message saved");
+                    } else {
+                        result.replies.add("Message sent");
+                    }
+                }
+                break;
+                case MSG_BROADCAST:
+                {
+                    ChatMessage bmsg = (ChatMessage) msg;
+                    result.replies.add(mNickname == null ? "Log in first"
+                        : fanOut(bmsg.mBody) ? "Broadcast sent" : "Broadcast failed");
+                }
+                break;
+                case MSG_LIST:
+                {
+                    ListMessage lmsg = (ListMessage) msg;
+                    result.replies.add(listPage(lmsg.prefix, lmsg.after, lmsg.count));
+                }
+                break;
+                case MSG_PRESENCE:
+                    result.replies.add(presence(((PresenceMessage) msg).watch));
+                break;
+                case MSG_JOIN:
+                {
+                    JoinMessage jmsg = (JoinMessage) msg;
+                    result.replies.add(enter(jmsg.room) ? msg.stringFormat() : "Log in first");
+                }
+                break;
+                case MSG_LEAVE:
+                {
+                    LeaveMessage lmsg = (LeaveMessage) msg;
+                    result.replies.add(depart(lmsg.room) ? msg.stringFormat() : "Not in room " + lmsg.room);
+                }
+                break;
+                case MSG_HISTORY:
+                {
+                    HistoryMessage hmsg = (HistoryMessage) msg;
+                    result.replies.add(historyPage(hmsg.peer, hmsg.count, hmsg.since, hmsg.until));
+                }
+                break;
+                case MSG_ROOM:
+                {
+                    ChatMessage rmsg = (ChatMessage) msg;
+                    result.replies.add(say(rmsg.mDestination, rmsg.mBody) ? "Room message sent" : "Not in room " + rmsg.mDestination);
+                }
+                break;
+                default:
+                    result.replies.add("Method not implemented");
+                break;
+            }
+            Metrics.mHandle.record(System.nanoTime() - start);
+        }
+        if (drainMax > 0) {
+            messageQueue.drainTo(result.messages, drainMax);
+        }
+        return result;
+    }
+
     public void terminate() {
         logger.Log("client ID=" + m_ID + " name=" + mNickname + " will disconnect..");
+        signOff();
+        mRoot.release(mNickname, this);
+        Presence.unwatch(this);
+        for (String room : mRooms) {
+            mRooms.remove(room);
+            mRoot.leaveRoom(room, this);
+        }
         mNickname = null;
+        mListener = null;
+        messageQueue.clear();
+    }
+
+    /** Idle for longer than expiryMs: the owner stopped polling and never said goodbye. */
+    boolean expired(long now, long expiryMs) {
+        if (now - mLastSeen <= expiryMs) {
+            return false;
+        }
+        // a subscribed client doesn't call in while nobody writes to it, ask it
+        IChatListener listener = mListener;
+        if (listener != null) {
+            ping(listener);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Pings on Generator.mPingers, so a listener that doesn't answer holds
+     * up neither the sweep nor the pushes; the call gives up after
+     * PUSH_TIMEOUT_MS. An answer counts as a call in, a failure drops the
+     * listener and the next sweep reclaims this ChatOp.
+     */
+    void ping(final IChatListener listener) {
+        if (!mPinging.compareAndSet(false, true)) {
+            return;
+        }
+        Generator.mPingers.execute(new Runnable() {
+            public void run() {
+                try {
+                    listener.ping();
+                    touch();
+                } catch (RemoteException e) {
+                    if (mListener == listener) {
+                        mListener = null;
+                    }
+                } finally {
+                    mPinging.set(false);
+                }
+            }
+        });
     }
     
     public void enqueue(String message) throws RemoteException {
-        logger.Log("for " + mNickname + " enqueued {" + message + "}");
-        messageQueue.add(message);
+        if (logger.isTrace()) {
+            logger.trace("for " + mNickname + " enqueued {" + message + "}");
+        }
+        if (!messageQueue.add(message)) {
+            logger.warn("mailbox of " + mNickname + " is full, message dropped..");
+        }
+        if (mListener != null) {
+            schedulePush();
+        }
     }
 
     public String poll() throws RemoteException {
+        touch();
         return messageQueue.poll();
     }
-}
+
+    public void subscribe(IChatListener listener) throws RemoteException {
+        touch();
+        mListener = listener;
+        logger.Log("client ID=" + m_ID + " subscribed for push delivery..");
+        schedulePush();
+    }
+
+    /**
+     * Long poll: waits up to timeoutMs for the first message, then returns
+     * it together with whatever else is queued, at most maxMessages.
+     */
+    public ArrayList<String> pollBatch(int maxMessages, long timeoutMs) throws RemoteException {
+        ArrayList<String> batch = new ArrayList<String>();
+        touch();
+        try {
+            String first = messageQueue.poll(timeoutMs);
+            if (first != null) {
+                batch.add(first);
+                messageQueue.drainTo(batch, maxMessages - 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        touch();
+        return batch;
+    }
+
+    /** At most one push task per user at a time keeps messages in order. */
+    void schedulePush() {
+        if (mPushing.compareAndSet(false, true)) {
+            pushers.execute(new Runnable() {
+                public void run() {
+                    push();
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes each message before delivering it, so a poll or a DROP_OLDEST
+     * meanwhile can't make it remove another one; a failed delivery puts
+     * the message back for polling.
+     */
+    void push() {
+        while (true) {
+            IChatListener listener = mListener;
+            String message = listener == null ? null : messageQueue.poll();
+            if (message == null) {
+                mPushing.set(false);
+                // a message may have arrived after the poll
+                if (mListener != null && !messageQueue.isEmpty() && mPushing.compareAndSet(false, true)) {
+                    continue;
+                }
+                return;
+            }
+            try {
+                long start = System.nanoTime();
+                listener.deliver(message);
+                Metrics.mPush.record(System.nanoTime() - start);
+                touch();
+            } catch (RemoteException e) {
+                // client is gone, can't be reached or didn't answer within PUSH_TIMEOUT_MS
+                messageQueue.putBack(message);
+                logger.warn("push to " + mNickname + " failed, falling back to polling..");
+                mListener = null;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -2,46 +2,158 @@
 package server;
 
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.rmi.*; 
 import java.rmi.server.*;
 import service.*;
 
 public class Generator extends UnicastRemoteObject implements IGenerator
 {
-	public static ArrayList<IChatOp> mClientsList;
+	public static CopyOnWriteArrayList<IChatOp> mClientsList;
+	// logged in users, kept by login/terminate so lookups never go through RMI
+	public static ConcurrentHashMap<String, ChatOp> mDirectory = new ConcurrentHashMap<String, ChatOp>();
+	// room -> members, a room message only walks its own members
+	public static ConcurrentHashMap<String, Set<ChatOp>> mRooms = new ConcurrentHashMap<String, Set<ChatOp>>();
+	// chats and broadcasts kept for offline users, null with -Dchat.journal.dir=off
+	public static Journal mJournal = Journal.fromProperties("chat-journal");
 	int mServerCount = 0;
+	// a ChatOp whose owner didn't call in for this long is reclaimed, -Dchat.idle.expiryMs
+	static final long IDLE_EXPIRY_MS = Long.getLong("chat.idle.expiryMs", 10 * 60 * 1000);
+	ScheduledExecutorService mSweeper;
+	// idle subscribers are pinged here, -Dchat.idle.pingThreads
+	static ExecutorService mPingers = Executors.newFixedThreadPool(
+		Integer.getInteger("chat.idle.pingThreads", 4), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "idle-pinger");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	// limiter counters at the last sweep, to log only what changed
+	long mUserRejected = 0;
+	long mGlobalRejected = 0;
 
-    Generator() throws RemoteException {
+    public Generator() throws RemoteException {
 		super();
-		mClientsList = new ArrayList<IChatOp>();
+		mClientsList = new CopyOnWriteArrayList<IChatOp>();
+		mSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "idle-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, IDLE_EXPIRY_MS / 4);
+		mSweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Terminates and unexports every ChatOp whose owner went away silently,
+	 * and logs how many requests the rate limiter refused meanwhile. Quiet
+	 * subscribers are pinged in the background (ChatOp.ping), never here.
+	 */
+	void sweep() {
+		long user = RateLimiter.mUserRejected.get();
+		long global = RateLimiter.mGlobalRejected.get();
+		if (user != mUserRejected || global != mGlobalRejected) {
+			Logger.getInstance().warn("rate limited since last sweep: per user = " + (user - mUserRejected)
+				+ "  global = " + (global - mGlobalRejected));
+			mUserRejected = user;
+			mGlobalRejected = global;
+		}
+		long now = System.currentTimeMillis();
+		for (IChatOp ch : mClientsList) {
+			ChatOp op = (ChatOp) ch;
+			if (op.expired(now, IDLE_EXPIRY_MS)) {
+				Logger.getInstance().Log("client ID=" + op.m_ID + " idle, reclaiming..");
+				op.terminate();
+				mClientsList.remove(op);
+				Metrics.mReclaimed.incrementAndGet();
+				try {
+					UnicastRemoteObject.unexportObject(op, true);
+				} catch (NoSuchObjectException e) {
+					// already gone
+				}
+			}
+		}
 	}
 	
 	public IChatOp getNewServer() throws RemoteException {
-		IChatOp server = new ChatOp(this, mServerCount++);
+		IChatOp server = new ChatOp(this, nextServerID());
 		mClientsList.add(server);
 		return server;
 	}
 
+	synchronized int nextServerID() {
+		return mServerCount++;
+	}
+
 	public int getServerCount() throws RemoteException {
 		return mServerCount;
 	}
 
-	public IChatOp getUserInterface(String name) throws RemoteException {
-		for (IChatOp ch : mClientsList) {
-            if (ch.getNickname() != null && ch.getNickname().compareTo(name) == 0) {
-                return ch;
-            }
+	/** Atomically gives the name to op; false when someone else holds it. */
+	boolean claim(String name, ChatOp op) {
+		ChatOp owner = mDirectory.putIfAbsent(name, op);
+		if (owner == null) {
+			Presence.online(name);
 		}
-		return null;
+		return owner == null || owner == op;
 	}
 
-    public ArrayList<String> getOnlineUserList() throws RemoteException {
-		final ArrayList<String> list = new ArrayList<String>();
-		for (IChatOp ch : mClientsList) {
-			if (ch.getNickname() != null) {
-				list.add(ch.getNickname());
-			}
+	void release(String name, ChatOp op) {
+		if (name != null && mDirectory.remove(name, op)) {
+			Presence.offline(name);
 		}
-		return list;
+	}
+
+	ChatOp lookup(String name) {
+		return name == null ? null : mDirectory.get(name);
+	}
+
+	void joinRoom(String room, final ChatOp op) {
+		mRooms.compute(room, new BiFunction<String, Set<ChatOp>, Set<ChatOp>>() {
+			public Set<ChatOp> apply(String name, Set<ChatOp> members) {
+				if (members == null) {
+					members = ConcurrentHashMap.newKeySet();
+				}
+				members.add(op);
+				return members;
+			}
+		});
+	}
+
+	/** The last member out drops the room. */
+	void leaveRoom(String room, final ChatOp op) {
+		mRooms.computeIfPresent(room, new BiFunction<String, Set<ChatOp>, Set<ChatOp>>() {
+			public Set<ChatOp> apply(String name, Set<ChatOp> members) {
+				members.remove(op);
+				return members.isEmpty() ? null : members;
+			}
+		});
+	}
+
+	Set<ChatOp> roomMembers(String room) {
+		return mRooms.get(room);
+	}
+
+	public IChatOp getUserInterface(String name) throws RemoteException {
+		return lookup(name);
+	}
+
+    public ArrayList<String> getOnlineUserList() throws RemoteException {
+		return new ArrayList<String>(mDirectory.keySet());
 	}
 }
@@ -0,0 +1,84 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the style of HdrHistogram: 16 sub-buckets per
+ * power of two, so any value is kept within ~6%. Recording is a couple
+ * of atomic adds into a fixed array, safe from any thread and free of
+ * allocation; reading walks the array.
+ */
+public class Histogram
+{
+    private static final int SUB = 16;
+    private AtomicLongArray mCounts = new AtomicLongArray(64 * SUB);
+    private AtomicLong mSum = new AtomicLong();
+    private AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(index(value));
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // lost to a bigger or concurrent value, look again
+        }
+    }
+
+    static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (e - 4)) & (SUB - 1);
+        return (e - 3) * SUB + sub;
+    }
+
+    static long valueAt(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int e = index / SUB + 3;
+        return (long) (SUB + index % SUB) << (e - 4);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            n += mCounts.get(i);
+        }
+        return n;
+    }
+
+    /** Value at the given quantile (0.5, 0.99 ..). */
+    public long percentile(double q) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return valueAt(i);
+            }
+        }
+        return valueAt(mCounts.length() - 1);
+    }
+
+    /** Adds name_count, _sum, _max and the usual percentiles to out. */
+    public void snapshot(String name, Map<String, Long> out) {
+        out.put(name + "_count", count());
+        out.put(name + "_sum", mSum.get());
+        out.put(name + "_max", mMax.get());
+        out.put(name + "_p50", percentile(0.5));
+        out.put(name + "_p90", percentile(0.9));
+        out.put(name + "_p99", percentile(0.99));
+        out.put(name + "_p999", percentile(0.999));
+    }
+}
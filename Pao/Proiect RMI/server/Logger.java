@@ -1,19 +1,177 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Asynchronous logger. Callers only drop the line into a lock-free ring
+ * buffer; a background thread takes whatever is there in one go and
+ * writes it with a single FileChannel call.
+ *
+ * Settings (system properties):
+ *   chat.log.level   TRACE, INFO (default) or WARN; lines below it are skipped
+ *   chat.log.file    log file, default chat-server.log; "-" writes to stdout
+ *   chat.log.maxMB   size at which the file rolls over to .1, .2 .. (default 16)
+ *   chat.log.buffer  ring buffer slots, rounded up to a power of two (default 65536)
+ *
+ * When the ring is full the new line is dropped rather than blocking the
+ * caller; the number of dropped lines is reported in the log once the
+ * flusher catches up.
+ */
 public class Logger {
-    private static Logger instance = new Logger(); private Logger() { }
+    public enum Level { TRACE, INFO, WARN }
+
+    private static final int KEEP_FILES = 5;
+
+    private static Logger instance = new Logger(); private Logger() {
+        mLevel = Level.valueOf(System.getProperty("chat.log.level", "INFO"));
+        mFileName = System.getProperty("chat.log.file", "chat-server.log");
+        mMaxBytes = Long.getLong("chat.log.maxMB", 16) * 1024 * 1024;
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.buffer", 65536)) * 2 - 1);
+        mSlots = new AtomicReferenceArray<String>(size);
+        mMask = size - 1;
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }));
+    }
 
     private Logger(Logger other) { }
-    
-    public static Logger getInstance() { 
+
+    private volatile Level mLevel;
+    private String mFileName;
+    private long mMaxBytes;
+    private AtomicReferenceArray<String> mSlots;
+    private int mMask;
+    // next slot to claim / next slot to flush
+    private AtomicLong mHead = new AtomicLong();
+    private AtomicLong mTail = new AtomicLong();
+    private AtomicLong mDropped = new AtomicLong();
+    private WritableByteChannel mChannel;
+    private long mWritten;
+
+    public static Logger getInstance() {
         return instance;
     }
 
+    public void setLevel(Level level) {
+        mLevel = level;
+    }
+
+    /** Check before building an expensive trace line. */
+    public boolean isTrace() {
+        return mLevel == Level.TRACE;
+    }
+
     public void Log(String s) {
-        System.out.println("[+] " + s);
+        log(Level.INFO, s);
+    }
+
+    public void trace(String s) {
+        log(Level.TRACE, s);
+    }
+
+    public void warn(String s) {
+        log(Level.WARN, s);
+    }
+
+    public void log(Level level, String s) {
+        if (level.compareTo(mLevel) < 0) {
+            return;
+        }
+        String line = System.currentTimeMillis() + " [+] " + s + "\n";
+        long seq;
+        do {
+            seq = mHead.get();
+            if (seq - mTail.get() > mMask) {
+                mDropped.incrementAndGet();
+                return;
+            }
+        } while (!mHead.compareAndSet(seq, seq + 1));
+        mSlots.lazySet((int) (seq & mMask), line);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1000000);
+            }
+        }
+    }
+
+    /** Writes out everything published so far; false when there was nothing. */
+    private synchronized boolean drain() {
+        StringBuilder batch = new StringBuilder();
+        long tail = mTail.get();
+        String line;
+        while ((line = mSlots.get((int) (tail & mMask))) != null) {
+            batch.append(line);
+            mSlots.lazySet((int) (tail & mMask), null);
+            tail++;
+            mTail.set(tail);
+            if (batch.length() > 1 << 20) {
+                break;
+            }
+        }
+        long dropped = mDropped.getAndSet(0);
+        if (dropped > 0) {
+            batch.append(System.currentTimeMillis()).append(" [+] log buffer full, dropped ")
+                .append(dropped).append(" lines\n");
+        }
+        if (batch.length() == 0) {
+            return false;
+        }
+        write(StandardCharsets.UTF_8.encode(batch.toString()));
+        return true;
+    }
+
+    private void write(ByteBuffer bytes) {
+        try {
+            if (mChannel == null || (mFileName.compareTo("-") != 0 && mWritten > mMaxBytes)) {
+                open();
+            }
+            mWritten += bytes.remaining();
+            while (bytes.hasRemaining()) {
+                mChannel.write(bytes);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        if (mFileName.compareTo("-") == 0) {
+            mChannel = Channels.newChannel(new FileOutputStream(java.io.FileDescriptor.out));
+            return;
+        }
+        if (mChannel != null) {
+            mChannel.close();
+            for (int i = KEEP_FILES - 1; i >= 1; i--) {
+                new File(mFileName + "." + i).renameTo(new File(mFileName + "." + (i + 1)));
+            }
+            new File(mFileName).renameTo(new File(mFileName + ".1"));
+        }
+        File file = new File(mFileName);
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        mWritten = file.length();
     }
-}
\ No newline at end of file
+}
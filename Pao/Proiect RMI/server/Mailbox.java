@@ -0,0 +1,85 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages waiting for one user. Written by other users' RMI threads,
+ * read by the owner's poll or by the pusher, so it has to be thread
+ * safe; bounded so an absent user can't collect messages forever.
+ *
+ * On overflow DROP_OLDEST makes room by discarding the oldest message,
+ * DROP_NEWEST refuses the new one. Either way the drop is counted.
+ * Nodes are allocated per message, so an idle mailbox costs next to
+ * nothing however large the bound.
+ */
+public class Mailbox
+{
+    public enum Policy { DROP_OLDEST, DROP_NEWEST }
+
+    private LinkedBlockingDeque<String> mQueue;
+    private Policy mPolicy;
+    public AtomicLong mDropped = new AtomicLong();
+
+    public Mailbox(int capacity, Policy policy) {
+        mQueue = new LinkedBlockingDeque<String>(capacity);
+        mPolicy = policy;
+    }
+
+    /** Returns false when the message was not kept. */
+    public boolean add(String message) {
+        while (!mQueue.offer(message)) {
+            if (mPolicy == Policy.DROP_NEWEST) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            if (mQueue.poll() != null) {
+                mDropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a message taken by poll and then not delivered to the head
+     * of the queue. When the mailbox filled up meanwhile it is the oldest
+     * message, so it is the one dropped.
+     */
+    public boolean putBack(String message) {
+        if (!mQueue.offerFirst(message)) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public String poll() {
+        return mQueue.poll();
+    }
+
+    public String poll(long timeoutMs) throws InterruptedException {
+        return mQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public String peek() {
+        return mQueue.peek();
+    }
+
+    public int drainTo(ArrayList<String> batch, int maxMessages) {
+        return mQueue.drainTo(batch, maxMessages);
+    }
+
+    public boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    public int size() {
+        return mQueue.size();
+    }
+
+    public void clear() {
+        mQueue.clear();
+    }
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import common.MsgType;
+import service.IChatOp;
+
+/**
+ * Counters and histograms of the RMI server. Recording is an atomic add
+ * into storage that exists up front, so the message path never allocates
+ * for it; everything else (gauges, percentiles) is worked out when
+ * somebody reads.
+ *
+ * Read through JMX (MBean chat:type=Metrics, one Long attribute per
+ * value) or as plain text "chat_<name> <value>" lines from
+ * http://127.0.0.1:<chat.metrics.port>/metrics (default 63001, -1 turns
+ * the listener off). Durations are in nanoseconds. Serialization happens
+ * inside RMI, it is part of push_ns (one listener.deliver call).
+ */
+public class Metrics
+{
+    private static final MsgType[] TYPES = MsgType.values();
+
+    // requests handled, by MsgType ordinal
+    public static AtomicLongArray mMessages = new AtomicLongArray(TYPES.length);
+    // time spent on one request (a batch entry or a direct call)
+    public static Histogram mHandle = new Histogram();
+    // recipients of a broadcast or room message
+    public static Histogram mFanout = new Histogram();
+    // ChatOp handed out to first login
+    public static Histogram mLogin = new Histogram();
+    // one push to a client listener, marshalling included
+    public static Histogram mPush = new Histogram();
+    // ChatOps reclaimed by the idle sweeper
+    public static AtomicLong mReclaimed = new AtomicLong();
+
+    public static LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> out = new LinkedHashMap<String, Long>();
+        long queued = 0;
+        long deepest = 0;
+        long dropped = 0;
+        long sessions = 0;
+        for (IChatOp ch : Generator.mClientsList) {
+            Mailbox mailbox = ((ChatOp) ch).messageQueue;
+            int depth = mailbox.size();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+            dropped += mailbox.mDropped.get();
+            sessions++;
+        }
+        out.put("sessions", sessions);
+        out.put("users", (long) Generator.mDirectory.size());
+        out.put("presence_version", Presence.version());
+        out.put("presence_watchers", (long) Presence.mWatchers.size());
+        out.put("presence_deltas", Presence.mDeltas.get());
+        out.put("presence_snapshots", Presence.mSnapshots.get());
+        out.put("sessions_reclaimed", mReclaimed.get());
+        out.put("mailbox_queued", queued);
+        out.put("mailbox_deepest", deepest);
+        out.put("mailbox_dropped", dropped);
+        out.put("rate_limited_user", RateLimiter.mUserRejected.get());
+        out.put("rate_limited_global", RateLimiter.mGlobalRejected.get());
+        out.put("rooms", (long) Generator.mRooms.size());
+        if (Generator.mJournal != null) {
+            out.put("journal_end", Generator.mJournal.end());
+        }
+        for (int i = 0; i < TYPES.length; i++) {
+            out.put("messages_" + TYPES[i].name(), mMessages.get(i));
+        }
+        mHandle.snapshot("handle_ns", out);
+        mFanout.snapshot("fanout", out);
+        mLogin.snapshot("login_ns", out);
+        mPush.snapshot("push_ns", out);
+        return out;
+    }
+
+    /** The plain-text form served over HTTP. */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            text.append("chat_").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Registers the MBean and starts the HTTP listener. */
+    public static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("chat:type=Metrics"));
+        } catch (Exception e) {
+            Logger.getInstance().warn("metrics: no JMX bean: " + e.getMessage());
+        }
+        int port = Integer.getInteger("chat.metrics.port", 63001);
+        if (port < 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            http.start();
+            Logger.getInstance().Log("metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Logger.getInstance().warn("metrics: can't listen on " + port + ": " + e.getMessage());
+        }
+    }
+
+    /** Read-only MBean over snapshot(). */
+    static class Bean implements DynamicMBean
+    {
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Long value = snapshot().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            LinkedHashMap<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            LinkedHashMap<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
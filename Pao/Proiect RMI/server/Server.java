@@ -10,11 +10,16 @@ public class Server
     public static void main(String[] args) throws Exception
     {
         System.setProperty("java.rmi.server.useCodebaseOnly", "false");
+        // calls into client listeners (push, ping) give up instead of hanging a thread
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(ChatOp.PUSH_TIMEOUT_MS));
+        }
 
         final int port = 63000;      
         Generator ob = new Generator();
         Registry reg = LocateRegistry.createRegistry(port);
         reg.rebind("ChatServiceGenerator", ob);
+        Metrics.start();
         System.out.println("Server is bound..");
     }    
 }
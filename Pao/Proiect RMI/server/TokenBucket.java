@@ -0,0 +1,48 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket held in a single long: the time at which the bucket would
+ * be full again (GCRA). Taking tokens pushes that time forward by
+ * tokens / rate; the request is refused when it would end up more than
+ * one burst ahead of now. One nanoTime and one CAS, no allocation, no
+ * lock, so it can sit on the message path and be shared between threads.
+ */
+public class TokenBucket
+{
+    private final long mNanosPerToken;
+    private final long mBurstNanos;
+    private final AtomicLong mFullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /** rate tokens per second, at most burst at once; rate <= 0 never refuses. */
+    public TokenBucket(double rate, double burst) {
+        mNanosPerToken = rate <= 0 ? 0 : (long) (1e9 / rate);
+        mBurstNanos = (long) (Math.max(1, burst) * mNanosPerToken);
+    }
+
+    public boolean tryAcquire(int tokens) {
+        if (mNanosPerToken == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long cost = tokens * mNanosPerToken;
+        while (true) {
+            long fullAt = mFullAt.get();
+            long next = Math.max(fullAt, now) + cost;
+            if (next - now > mBurstNanos) {
+                return false;
+            }
+            if (mFullAt.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** Gives back tokens taken by tryAcquire for a request that was refused later on. */
+    public void refund(int tokens) {
+        if (mNanosPerToken != 0) {
+            mFullAt.addAndGet(-tokens * mNanosPerToken);
+        }
+    }
+}
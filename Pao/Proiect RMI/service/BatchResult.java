@@ -0,0 +1,15 @@
+
+package service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * What IChatOp.batch sends back: one reply per operation, in order, and
+ * the messages drained from the caller's mailbox.
+ */
+public class BatchResult implements Serializable
+{
+    public ArrayList<String> replies = new ArrayList<String>();
+    public ArrayList<String> messages = new ArrayList<String>();
+}
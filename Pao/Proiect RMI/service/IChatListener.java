@@ -0,0 +1,15 @@
+
+package service;
+
+import java.rmi.*;
+
+/**
+ * Exported by a client that wants messages pushed to it instead of
+ * polling for them.
+ */
+public interface IChatListener extends Remote
+{
+    public void deliver(String message) throws RemoteException;
+    /** Liveness check for clients that are subscribed but idle. */
+    public void ping() throws RemoteException;
+}
@@ -3,6 +3,7 @@ package service;
 
 import java.util.ArrayList;
 import java.rmi.*;
+import common.Message;
 
 public interface IChatOp extends Remote
 {
@@ -10,8 +11,17 @@ public interface IChatOp extends Remote
     public String getNickname() throws RemoteException;
     public Boolean login(String name) throws RemoteException;
     public String list() throws RemoteException;
+    public String list(String prefix, String after, int count) throws RemoteException;
+    public String watch(boolean on) throws RemoteException;
     public Boolean send(String destination, String body) throws RemoteException;
     public Boolean broadcast(String body) throws RemoteException;
+    public Boolean join(String room) throws RemoteException;
+    public Boolean leave(String room) throws RemoteException;
+    public Boolean roomSend(String room, String body) throws RemoteException;
+    public String history(String peer, int count, long since, long until) throws RemoteException;
     public void enqueue(String message) throws RemoteException;
     public String poll() throws RemoteException;
+    public void subscribe(IChatListener listener) throws RemoteException;
+    public ArrayList<String> pollBatch(int maxMessages, long timeoutMs) throws RemoteException;
+    public BatchResult batch(ArrayList<Message> ops, int drainMax) throws RemoteException;
 }
@@ -0,0 +1,151 @@
+package bench;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.ChatClient;
+import common.BinaryWire;
+import common.MessageFactory;
+import common.MsgType;
+import common.Wire;
+import server.Compression;
+import server.NioServer;
+import server.Presence;
+
+/**
+ * What per-connection compression saves on the wire and costs the
+ * server. Runs the nio server in this JVM; two clients receive the same
+ * traffic, one logged in with compression off and one with it on:
+ * private chats, broadcasts and full ls listings of a crowd of users.
+ * Reports the bytes each received per message and the server's deflate
+ * time per frame.
+ *
+ * Run with: java bench.CompressBench [messages] [users]
+ * (-Dchat.compress.level=1..9 to try other levels)
+ */
+public class CompressBench
+{
+    static final String[] WORDS = {
+        "hey", "are", "you", "coming", "to", "the", "meeting", "at", "three", "or", "later",
+        "I", "pushed", "fix", "for", "build", "can", "review", "it", "today", "thanks", "lunch"
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.journal.dir", "off");
+        System.setProperty("chat.limit.userRate", "0");
+        System.setProperty("chat.limit.globalRate", "0");
+        System.setProperty("chat.log.level", "WARN");
+        System.setProperty("chat.compress", "on");
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int port = 9690;
+
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new NioServer(port, 2).serve();
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        final AtomicInteger plainGot = new AtomicInteger();
+        final AtomicInteger deflateGot = new AtomicInteger();
+        ChatClient sender = ChatClient.connect("localhost", port, null);
+        ChatClient plain = ChatClient.connect("localhost", port, counter(plainGot));
+        ChatClient deflate = ChatClient.connect("localhost", port, counter(deflateGot));
+        sender.login("sender", false).get(10, TimeUnit.SECONDS);
+        plain.login("plain", false).get(10, TimeUnit.SECONDS);
+        deflate.login("deflate", true).get(10, TimeUnit.SECONDS);
+
+        System.out.printf("%d messages, %d users, deflate level %s%n", messages, users,
+            System.getProperty("chat.compress.level", "default"));
+        System.out.printf("%-10s %14s %14s %8s %14s%n", "traffic", "plain B/msg", "deflate B/msg", "ratio", "deflate ns/msg");
+
+        long[] before = snapshot(plain, deflate);
+        for (int i = 0; i < messages; i++) {
+            String text = sentence(i);
+            sender.send("plain", text);
+            sender.send("deflate", text);
+        }
+        awaitCount(plainGot, deflateGot, messages);
+        report("chat", before, snapshot(plain, deflate), messages);
+
+        before = snapshot(plain, deflate);
+        for (int i = 0; i < messages; i++) {
+            sender.broadcast(sentence(i));
+        }
+        awaitCount(plainGot, deflateGot, 2 * messages);
+        report("broadcast", before, snapshot(plain, deflate), messages);
+
+        // a crowd to list, logged in only now so it does not get the broadcasts
+        MessageFactory factory = new MessageFactory();
+        ArrayList<Wire> crowd = new ArrayList<Wire>();
+        for (int i = 0; i < users; i++) {
+            Wire wire = new BinaryWire(new Socket("localhost", port));
+            wire.write(factory.createMessage(MsgType.MSG_HANDSHAKE, "user" + i));
+            crowd.add(wire);
+        }
+        while (Presence.count() < users + 3) {
+            Thread.sleep(50);
+        }
+        int lists = Math.max(1, messages / 1000);
+        before = snapshot(plain, deflate);
+        for (int i = 0; i < lists; i++) {
+            plain.list().get(30, TimeUnit.SECONDS);
+            deflate.list().get(30, TimeUnit.SECONDS);
+        }
+        report("ls", before, snapshot(plain, deflate), lists);
+        System.exit(0);
+    }
+
+    static ChatClient.Listener counter(final AtomicInteger got) {
+        return new ChatClient.Listener() {
+            public void message(String text) {
+                got.incrementAndGet();
+            }
+            public void closed(Exception cause) {
+            }
+        };
+    }
+
+    /** A few words picked by i, the kind of line people type. */
+    static String sentence(int i) {
+        StringBuilder sb = new StringBuilder();
+        int words = 4 + i % 9;
+        for (int w = 0; w < words; w++) {
+            sb.append(w == 0 ? "" : " ").append(WORDS[(i * 7 + w * 13 + w * w) % WORDS.length]);
+        }
+        return sb.append(" #").append(i).toString();
+    }
+
+    static void awaitCount(AtomicInteger a, AtomicInteger b, int count) throws InterruptedException {
+        long end = System.nanoTime() + 60000000000L;
+        while ((a.get() < count || b.get() < count) && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        // the tail of the replies to the sender
+        Thread.sleep(200);
+    }
+
+    /** plain bytes, deflate bytes, deflated frames, deflate ns so far. */
+    static long[] snapshot(ChatClient plain, ChatClient deflate) {
+        LinkedHashMap<String, Long> out = new LinkedHashMap<String, Long>();
+        Compression.mDeflate.snapshot("deflate", out);
+        return new long[] { plain.bytesIn(), deflate.bytesIn(), out.get("deflate_count"), out.get("deflate_sum") };
+    }
+
+    static void report(String name, long[] before, long[] after, int messages) {
+        double plainBytes = (double) (after[0] - before[0]) / messages;
+        double deflateBytes = (double) (after[1] - before[1]) / messages;
+        System.out.printf("%-10s %14.1f %14.1f %8.2f %14.0f%n", name, plainBytes, deflateBytes,
+            deflateBytes / plainBytes, (double) (after[3] - before[3]) / messages);
+    }
+}
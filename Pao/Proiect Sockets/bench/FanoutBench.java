@@ -0,0 +1,67 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import common.BinaryCodec;
+import common.Encoded;
+import server.Session;
+
+/**
+ * Broadcast fan-out with the reply encoded per recipient against one
+ * shared Encoded frame. Reports bytes allocated per broadcast and
+ * broadcasts per second for a growing number of sessions. The sessions
+ * drain their outbox like the nio writer does, minus the socket.
+ * Run with: java bench.FanoutBench
+ */
+public class FanoutBench
+{
+    static volatile Object sink;
+
+    static class SinkSession extends Session {
+        @Override
+        protected void queued() {
+            Object item;
+            while ((item = mOutbox.poll()) != null) {
+                sink = BinaryCodec.frame(item);
+            }
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        String text = "User alice broadcast to everybody: \"server restarts in 5 minutes\"";
+        System.out.printf("%8s %8s %16s %16s%n", "users", "mode", "bytes/broadcast", "broadcasts/s");
+        for (int users : new int[] { 10, 1000, 10000 }) {
+            ArrayList<Session> sessions = new ArrayList<Session>();
+            for (int i = 0; i < users; i++) {
+                sessions.add(new SinkSession());
+            }
+            int rounds = Math.max(20, 2000000 / users);
+            for (boolean shared : new boolean[] { false, true }) {
+                fanout(sessions, text, shared, rounds / 4);
+                long bytes = threads.getThreadAllocatedBytes(self);
+                long t = System.nanoTime();
+                fanout(sessions, text, shared, rounds);
+                long ns = System.nanoTime() - t;
+                bytes = threads.getThreadAllocatedBytes(self) - bytes;
+                System.out.printf("%8d %8s %16d %16.0f%n", users, shared ? "shared" : "per-user",
+                    bytes / rounds, rounds * 1e9 / ns);
+            }
+        }
+    }
+
+    static void fanout(ArrayList<Session> sessions, String text, boolean shared, int rounds) throws Exception {
+        for (int r = 0; r < rounds; r++) {
+            Object out = shared ? new Encoded(text) : text;
+            for (Session s : sessions) {
+                s.send(out);
+            }
+        }
+    }
+}
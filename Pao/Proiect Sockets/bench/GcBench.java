@@ -0,0 +1,160 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.BinaryWire;
+import common.MessageFactory;
+import common.MsgType;
+import common.Wire;
+import server.NioServer;
+import server.Server;
+
+/**
+ * Garbage made by the nio server's outbound path. Runs the nio server in
+ * this JVM, connects receivers and one sender, and broadcasts for a
+ * while, once with pooled direct frames and once the old way
+ * (chat.pool=off: a heap frame and a wrapping buffer per write). Reports
+ * what the selector loops allocated (ThreadMXBean, so the clients in the
+ * same JVM don't count) per broadcast and per delivered message, and the
+ * young collections the whole JVM went through meanwhile.
+ *
+ * Run with: java bench.GcBench [receivers] [seconds]
+ */
+public class GcBench
+{
+    static final int WINDOW = 16;
+
+    static AtomicLong delivered = new AtomicLong();
+    static Semaphore window = new Semaphore(WINDOW);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.journal.dir", "off");
+        System.setProperty("chat.limit.userRate", "0");
+        System.setProperty("chat.limit.globalRate", "0");
+        System.setProperty("chat.log.level", "WARN");
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.printf("%-8s %12s %12s %14s %12s %10s%n",
+            "frames", "broadcasts", "delivered", "bytes/bcast", "bytes/msg", "young GCs");
+        int port = 9490;
+        for (boolean pooled : new boolean[] { false, true }) {
+            run(pooled, port++, receivers, seconds);
+        }
+        System.exit(0);
+    }
+
+    static void run(boolean pooled, final int port, int receivers, int seconds) throws Exception {
+        Server.mPooled = pooled;
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new NioServer(port, 2).serve();
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        MessageFactory factory = new MessageFactory();
+        String prefix = "gc" + port + "_";
+        ArrayList<Wire> wires = new ArrayList<Wire>();
+        for (int i = 0; i < receivers; i++) {
+            final Wire wire = new BinaryWire(new Socket("localhost", port));
+            wire.write(factory.createMessage(MsgType.MSG_HANDSHAKE, prefix + i));
+            wires.add(wire);
+            reader(wire, false);
+        }
+        Wire sender = new BinaryWire(new Socket("localhost", port));
+        sender.write(factory.createMessage(MsgType.MSG_HANDSHAKE, prefix + "sender"));
+        reader(sender, true);
+        Thread.sleep(500);
+
+        // warm up, then measure
+        broadcast(sender, factory, 2000000000L);
+        long loops = loopBytes();
+        long gcs = youngCollections();
+        long before = delivered.get();
+        long sent = broadcast(sender, factory, seconds * 1000000000L);
+        window.acquire(WINDOW);
+        window.release(WINDOW);
+        Thread.sleep(200);
+        long bytes = loopBytes() - loops;
+        long count = delivered.get() - before;
+        System.out.printf("%-8s %12d %12d %14d %12.1f %10d%n", pooled ? "pooled" : "off",
+            sent, count, bytes / Math.max(1, sent), (double) bytes / Math.max(1, count),
+            youngCollections() - gcs);
+
+        for (Wire wire : wires) {
+            wire.write(factory.createMessage(MsgType.MSG_DISCONNECT));
+        }
+        sender.write(factory.createMessage(MsgType.MSG_DISCONNECT));
+        Thread.sleep(500);
+    }
+
+    static long broadcast(Wire sender, MessageFactory factory, long nanos) throws Exception {
+        long end = System.nanoTime() + nanos;
+        long sent = 0;
+        while (System.nanoTime() < end) {
+            window.acquire();
+            sender.write(factory.createMessage(MsgType.MSG_BROADCAST, null, "gc bench broadcast " + sent));
+            sent++;
+        }
+        return sent;
+    }
+
+    static void reader(final Wire wire, final boolean sender) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        String reply = (String) wire.read();
+                        if (reply.startsWith("Broadcast sent")) {
+                            window.release();
+                        } else if (!sender && reply.startsWith("User ")) {
+                            delivered.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    // disconnected
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Bytes allocated so far by the selector loop threads. */
+    static long loopBytes() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("nio-loop-")) {
+                total += threads.getThreadAllocatedBytes(info.getThreadId());
+            }
+        }
+        return total;
+    }
+
+    static long youngCollections() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (name.contains("Young") || name.contains("Scavenge") || name.contains("Copy")
+                    || name.contains("ParNew")) {
+                total += gc.getCollectionCount();
+            }
+        }
+        return total;
+    }
+}
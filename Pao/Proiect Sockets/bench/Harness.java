@@ -0,0 +1,71 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Minimal stand-in for JMH: warms an operation up, times a few
+ * measurement iterations and records the average ns/op. The results are
+ * printed as JSON in the shape JMH uses (-rf json), so they can be
+ * tracked and compared across releases with the same tooling.
+ */
+public class Harness
+{
+    public interface Op {
+        Object run() throws Exception;
+    }
+
+    static volatile Object sink;
+
+    long mWarmupNanos = Long.getLong("bench.warmupMs", 300) * 1000000;
+    long mIterationNanos = Long.getLong("bench.iterationMs", 200) * 1000000;
+    int mIterations = Integer.getInteger("bench.iterations", 5);
+    ArrayList<String> mResults = new ArrayList<String>();
+
+    public void measure(String name, String param, String value, Op op) throws Exception {
+        run(op, mWarmupNanos);
+        double[] scores = new double[mIterations];
+        double sum = 0;
+        for (int i = 0; i < mIterations; i++) {
+            scores[i] = run(op, mIterationNanos);
+            sum += scores[i];
+        }
+        double mean = sum / mIterations;
+        double var = 0;
+        for (double score : scores) {
+            var += (score - mean) * (score - mean);
+        }
+        double error = mIterations > 1 ? Math.sqrt(var / (mIterations - 1)) : 0;
+        String params = param == null ? "" :
+            String.format(",\"params\":{\"%s\":\"%s\"}", param, value);
+        mResults.add(String.format(Locale.ROOT,
+            "{\"benchmark\":\"%s\",\"mode\":\"avgt\"%s,\"measurementIterations\":%d,"
+            + "\"primaryMetric\":{\"score\":%.3f,\"scoreError\":%.3f,\"scoreUnit\":\"ns/op\"}}",
+            name, params, mIterations, mean, error));
+        System.err.printf(Locale.ROOT, "%-50s %10s %12.1f ns/op%n",
+            name, value == null ? "" : value, mean);
+    }
+
+    /** Runs op in batches until the time is up, returns ns per call. */
+    static double run(Op op, long nanos) throws Exception {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        int batch = 1;
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink = op.run();
+            }
+            calls += batch;
+            if (batch < 1024) {
+                batch *= 2;
+            }
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return (double) elapsed / calls;
+    }
+
+    public String json() {
+        return "[\n    " + String.join(",\n    ", mResults) + "\n]";
+    }
+}
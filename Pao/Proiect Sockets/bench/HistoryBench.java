@@ -0,0 +1,108 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import server.Journal;
+
+/**
+ * History query latency against a large journal. Fills it with chats
+ * spread over many conversations (and some broadcasts), with timestamps
+ * one millisecond apart, then times "last 50 with X" and "50 before T"
+ * (T halfway back) on random conversations, and one full scan for
+ * comparison. Reopening shows that recovery doesn't depend on the size.
+ *
+ * One pair of users, user0 and user1, gets hotPercent of all chats, so
+ * there is one conversation of millions of messages at scale; it is
+ * queried at its newest end, halfway back and in its oldest 1%, where
+ * the cost of walking back shows.
+ * Run with: java bench.HistoryBench [dir] [messages] [users] [hotPercent]
+ * (100M messages needs ~12 GB of disk).
+ */
+public class HistoryBench
+{
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "history-bench");
+        long messages = args.length > 1 ? Long.parseLong(args[1]) : 2000000;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int hotPercent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        JournalBench.wipe(dir);
+
+        Journal journal = new Journal(dir, 64L << 20, 0, -1);
+        Random random = new Random(1);
+        long base = System.currentTimeMillis() - messages;
+        long start = System.nanoTime();
+        for (long i = 0; i < messages; i++) {
+            String from = "user" + random.nextInt(users);
+            if (i % 100 == 0) {
+                journal.append(Journal.BROADCAST, base + i, from, null, "broadcast number " + i);
+            } else if (random.nextInt(100) < hotPercent) {
+                journal.append(Journal.CHAT, base + i, "user" + (i & 1), "user" + (~i & 1), "message number " + i);
+            } else {
+                String to = "user" + random.nextInt(users);
+                journal.append(Journal.CHAT, base + i, from, to, "message number " + i);
+            }
+        }
+        System.out.printf("filled %d messages in %.1f s, %d MB%n", messages,
+            (System.nanoTime() - start) / 1e9, journal.end() >> 20);
+
+        start = System.nanoTime();
+        journal = new Journal(dir, 64L << 20, 0, -1);
+        System.out.printf("reopened in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        LatencyHistogram latest = new LatencyHistogram();
+        LatencyHistogram before = new LatencyHistogram();
+        long middle = base + messages / 2;
+        int rows = 0;
+        for (int q = 0; q < 2000; q++) {
+            String a = "user" + random.nextInt(users);
+            String b = "user" + random.nextInt(users);
+            String conversation = q % 10 == 0 ? "*" : Journal.conversation(Journal.CHAT, a, b);
+            long t = System.nanoTime();
+            ArrayDeque<Journal.Record> page = journal.history(conversation, 0, Long.MAX_VALUE, 50);
+            latest.record((System.nanoTime() - t) / 1000);
+            t = System.nanoTime();
+            page = journal.history(conversation, 0, middle, 50);
+            before.record((System.nanoTime() - t) / 1000);
+            rows += page.size();
+        }
+        String hot = Journal.conversation(Journal.CHAT, "user0", "user1");
+        LatencyHistogram hotLatest = new LatencyHistogram();
+        LatencyHistogram hotMiddle = new LatencyHistogram();
+        LatencyHistogram hotDeep = new LatencyHistogram();
+        for (int q = 0; q < 200; q++) {
+            long t = System.nanoTime();
+            rows += journal.history(hot, 0, Long.MAX_VALUE, 50).size();
+            hotLatest.record((System.nanoTime() - t) / 1000);
+            t = System.nanoTime();
+            rows += journal.history(hot, 0, middle - q, 50).size();
+            hotMiddle.record((System.nanoTime() - t) / 1000);
+            t = System.nanoTime();
+            rows += journal.history(hot, 0, base + messages / 100 - q, 50).size();
+            hotDeep.record((System.nanoTime() - t) / 1000);
+        }
+        System.out.printf("%-22s %8s %8s %8s%n", "query", "p50 us", "p99 us", "max us");
+        print("last 50", latest);
+        print("50 before T", before);
+        print("hot: last 50", hotLatest);
+        print("hot: 50 before T", hotMiddle);
+        print("hot: 50 in oldest 1%", hotDeep);
+
+        final long[] seen = { 0 };
+        start = System.nanoTime();
+        journal.scan(0, journal.end(), new Journal.Visitor() {
+            public void record(Journal.Record r) {
+                seen[0]++;
+            }
+        });
+        System.out.printf("full scan of %d records: %.0f ms (%d rows returned above)%n",
+            seen[0], (System.nanoTime() - start) / 1e6, rows);
+        JournalBench.wipe(dir);
+        dir.delete();
+    }
+
+    static void print(String query, LatencyHistogram h) {
+        System.out.printf("%-22s %8d %8d %8d%n", query, h.percentile(0.5), h.percentile(0.99), h.percentile(1.0));
+    }
+}
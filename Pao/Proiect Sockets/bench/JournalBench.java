@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+
+import common.BinaryCodec;
+import common.ChatMessage;
+import server.Journal;
+
+/**
+ * Journal append throughput for each fsync setting next to the in-memory
+ * path (encoding the reply frame, which every chat pays anyway), then a
+ * crash-recovery check: fill several small segments, reopen the journal
+ * and time it, and check that the backlog of a user comes back whole.
+ * Run with: java bench.JournalBench [dir] [messages] [threads]
+ */
+public class JournalBench
+{
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "journal-bench");
+        final int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final String body = "hey, are you coming tonight?";
+
+        System.out.printf("%12s %8s %14s%n", "mode", "threads", "messages/s");
+        for (int t : new int[] { 1, threads }) {
+            System.out.printf("%12s %8d %14.0f%n", "memory", t, run(null, messages, t, body));
+            for (long fsyncMs : new long[] { -1, 10, 0 }) {
+                wipe(dir);
+                Journal journal = new Journal(dir, 64L << 20, 0, fsyncMs);
+                // a synchronous fsync per message is slow, measure it on fewer
+                int n = fsyncMs == 0 ? messages / 20 : messages;
+                System.out.printf("%12s %8d %14.0f%n", "fsync=" + fsyncMs, t, run(journal, n, t, body));
+            }
+        }
+
+        wipe(dir);
+        Journal journal = new Journal(dir, 1L << 20, 0, -1);
+        int expected = 0;
+        for (int i = 0; i < messages; i++) {
+            String to = "user" + (i % 50);
+            journal.append(Journal.CHAT, System.currentTimeMillis(), "alice", to, body);
+            if (to.compareTo("user7") == 0) {
+                expected++;
+            }
+            if (i == 0) {
+                journal.markRead("user7", 0);
+            }
+        }
+        long end = journal.end();
+        long start = System.nanoTime();
+        Journal reopened = new Journal(dir, 1L << 20, 0, -1);
+        double ms = (System.nanoTime() - start) / 1e6;
+        ArrayDeque<ChatMessage> backlog = new ArrayDeque<ChatMessage>();
+        int found = reopened.backlog("user7", reopened.offset("user7"), reopened.end(), backlog, Integer.MAX_VALUE);
+        System.out.printf("recovery: %d segments, reopened in %.1f ms, end %s, backlog %d/%d%n",
+            dir.listFiles().length - 1, ms, end == reopened.end() ? "ok" : "MISMATCH", found, expected);
+        wipe(dir);
+        dir.delete();
+    }
+
+    static double run(final Journal journal, final int messages, int threads, final String body) throws Exception {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final int each = messages / threads;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < each; i++) {
+                            String text = String.format("User %s tells you: \"%s\"", "alice", body);
+                            sink = BinaryCodec.frame(text);
+                            if (journal != null) {
+                                journal.append(Journal.CHAT, System.currentTimeMillis(), "alice", "bob", body);
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.out.println(e.getMessage());
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return each * threads * 1e9 / (System.nanoTime() - start);
+    }
+
+    static void wipe(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
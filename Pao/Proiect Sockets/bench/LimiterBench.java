@@ -0,0 +1,61 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import server.TokenBucket;
+
+/**
+ * Cost of the ingress limiter on the message path: nanoseconds per
+ * tryAcquire for a per-user bucket (one thread), a shared global bucket
+ * hit from several threads, and an unlimited one. Then floods a 50/s,
+ * burst 100 bucket for a second to show how much gets through.
+ * Run with: java bench.LimiterBench [threads]
+ */
+public class LimiterBench
+{
+    static volatile boolean sink;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int calls = 20000000;
+        System.out.printf("%-22s %8s %10s%n", "bucket", "threads", "ns/call");
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("%-22s %8d %10.1f%n", "unlimited", 1, run(new TokenBucket(0, 0), 1, calls));
+            System.out.printf("%-22s %8d %10.1f%n", "per user", 1, run(new TokenBucket(1e9, 1e12), 1, calls));
+            System.out.printf("%-22s %8d %10.1f%n", "global, shared", threads, run(new TokenBucket(1e9, 1e12), threads, calls));
+        }
+
+        TokenBucket user = new TokenBucket(50, 100);
+        long admitted = 0;
+        long tried = 0;
+        long end = System.nanoTime() + 1000000000L;
+        while (System.nanoTime() < end) {
+            tried++;
+            if (user.tryAcquire(1)) {
+                admitted++;
+            }
+        }
+        System.out.printf("flood for 1 s at 50/s burst 100: %d of %d admitted%n", admitted, tried);
+    }
+
+    /** Average ns per call with every thread calling its share. */
+    static double run(final TokenBucket bucket, int threads, int calls) throws Exception {
+        final int each = calls / threads;
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    boolean ok = true;
+                    for (int i = 0; i < each; i++) {
+                        ok &= bucket.tryAcquire(1);
+                    }
+                    sink = ok;
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return (double) (System.nanoTime() - start) * threads / calls;
+    }
+}
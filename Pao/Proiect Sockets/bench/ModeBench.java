@@ -0,0 +1,110 @@
+package bench;
+
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.BinaryWire;
+import common.MessageFactory;
+import common.MsgType;
+import common.Wire;
+
+/**
+ * Platform threads against virtual threads (or nio) for the socket
+ * server. For each mode and connection count it starts the server in a
+ * child JVM, opens that many idle logged-in sessions, then times chat
+ * delivery between two probe sessions. It reports the server's resident
+ * memory and thread count from /proc (Linux only).
+ *
+ * Run with: java bench.ModeBench [modes] [counts]
+ *   e.g. java bench.ModeBench blocking,virtual 1000,10000,50000
+ * Large counts need a raised open file limit (ulimit -n) on both sides.
+ */
+public class ModeBench
+{
+    static final int PROBES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        String[] modes = (args.length > 0 ? args[0] : "blocking,virtual").split(",");
+        String[] counts = (args.length > 1 ? args[1] : "1000,10000,50000").split(",");
+        MessageFactory factory = new MessageFactory();
+        System.out.printf("%-10s %8s %10s %8s %12s %12s%n",
+            "mode", "conns", "rss MB", "threads", "p50 ms", "p99 ms");
+        for (String mode : modes) {
+            for (String count : counts) {
+                int n = Integer.parseInt(count);
+                Process server = new ProcessBuilder("java", "-Dchat.log.level=WARN",
+                    "-cp", System.getProperty("java.class.path"), "server.Server", mode)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File("/dev/null"))
+                    .start();
+                List<Wire> idle = new ArrayList<Wire>();
+                try {
+                    waitForPort();
+                    for (int i = 0; i < n; i++) {
+                        Wire wire = new BinaryWire(new Socket("localhost", 9090));
+                        wire.write(factory.createMessage(MsgType.MSG_HANDSHAKE, "idle" + i));
+                        idle.add(wire);
+                    }
+                    LatencyHistogram latency = probe(factory);
+                    String status = new String(Files.readAllBytes(new File("/proc/" + server.pid() + "/status").toPath()));
+                    System.out.printf("%-10s %8d %10.1f %8s %12.3f %12.3f%n", mode, n,
+                        field(status, "VmRSS:") / 1024.0, field(status, "Threads:"),
+                        latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0);
+                } finally {
+                    for (Wire wire : idle) {
+                        wire.close();
+                    }
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        }
+    }
+
+    /** One probe sends PROBES chats to the other, one at a time. */
+    static LatencyHistogram probe(MessageFactory factory) throws Exception {
+        Wire from = new BinaryWire(new Socket("localhost", 9090));
+        Wire to = new BinaryWire(new Socket("localhost", 9090));
+        from.write(factory.createMessage(MsgType.MSG_HANDSHAKE, "probeFrom"));
+        to.write(factory.createMessage(MsgType.MSG_HANDSHAKE, "probeTo"));
+        // the recipient has to be logged in before the first chat
+        while (!((String) to.read()).startsWith("Name set")) { }
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < PROBES; i++) {
+            long t = System.nanoTime();
+            from.write(factory.createMessage(MsgType.MSG_CHAT, "probeTo", "ping " + i));
+            String reply;
+            do {
+                reply = (String) to.read();
+            } while (!reply.endsWith("\"ping " + i + "\""));
+            latency.record((System.nanoTime() - t) / 1000);
+        }
+        from.close();
+        to.close();
+        return latency;
+    }
+
+    static void waitForPort() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", 9090).close();
+                return;
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new Exception("server did not start");
+    }
+
+    static long field(String status, String name) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith(name)) {
+                return Long.parseLong(line.substring(name.length()).trim().split(" ")[0]);
+            }
+        }
+        return -1;
+    }
+}
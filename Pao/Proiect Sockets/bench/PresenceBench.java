@@ -0,0 +1,109 @@
+package bench;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import client.ChatClient;
+import common.BinaryWire;
+import common.MessageFactory;
+import common.MsgType;
+import common.Wire;
+import server.NioServer;
+import server.Presence;
+
+/**
+ * What keeping a roster up to date costs a client: one client lists all
+ * users every period (ls, page by page), another watches presence. Runs
+ * the nio server in this JVM with users logged in and churn of them
+ * coming and going, and reports the bytes each client received, then
+ * checks that the watcher's roster matches a fresh list.
+ *
+ * Run with: java bench.PresenceBench [users] [churn/s] [seconds] [period ms]
+ */
+public class PresenceBench
+{
+    public static void main(String[] args) throws Exception {
+        System.setProperty("chat.journal.dir", "off");
+        System.setProperty("chat.limit.userRate", "0");
+        System.setProperty("chat.limit.globalRate", "0");
+        System.setProperty("chat.log.level", "WARN");
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int churn = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long period = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        final int port = 9590;
+
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new NioServer(port, 2).serve();
+                } catch (Exception e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        MessageFactory factory = new MessageFactory();
+        ArrayList<Wire> crowd = new ArrayList<Wire>();
+        int next = 0;
+        for (; next < users; next++) {
+            crowd.add(login(factory, port, "u" + next));
+        }
+        ChatClient poller = ChatClient.connect("localhost", port, null);
+        ChatClient watcher = ChatClient.connect("localhost", port, null);
+        poller.login("poller").get(10, TimeUnit.SECONDS);
+        watcher.login("watcher").get(10, TimeUnit.SECONDS);
+        while (Presence.count() < users + 2) {
+            Thread.sleep(50);
+        }
+        long pollerStart = poller.bytesIn();
+        long watcherStart = watcher.bytesIn();
+        watcher.watch().get(10, TimeUnit.SECONDS);
+
+        // one user leaves and a new one comes, churn times a second
+        long end = System.nanoTime() + seconds * 1000000000L;
+        long nextPoll = 0;
+        int polls = 0;
+        int changes = 0;
+        while (System.nanoTime() < end) {
+            if (System.nanoTime() >= nextPoll) {
+                poller.list().get(10, TimeUnit.SECONDS);
+                polls++;
+                nextPoll = System.nanoTime() + period * 1000000;
+            }
+            for (int i = 0; i < churn / 10; i++) {
+                Wire gone = crowd.remove((int) (Math.random() * crowd.size()));
+                gone.write(factory.createMessage(MsgType.MSG_DISCONNECT));
+                crowd.add(login(factory, port, "u" + next++));
+                changes += 2;
+            }
+            Thread.sleep(100);
+        }
+        Thread.sleep(500);
+        long pollerBytes = poller.bytesIn() - pollerStart;
+        long watcherBytes = watcher.bytesIn() - watcherStart;
+
+        List<String> listed = poller.list().get(10, TimeUnit.SECONDS);
+        boolean same = new TreeSet<String>(listed).equals(new TreeSet<String>(watcher.roster()));
+        System.out.printf("users %d, %d changes in %d s, poll every %d ms%n", users, changes, seconds, period);
+        System.out.printf("%-10s %12s %14s%n", "client", "bytes in", "bytes/change");
+        System.out.printf("%-10s %12d %14.1f   (%d full lists)%n", "ls", pollerBytes,
+            (double) pollerBytes / Math.max(1, changes), polls);
+        System.out.printf("%-10s %12d %14.1f   (snapshot + deltas, version %d)%n", "watch", watcherBytes,
+            (double) watcherBytes / Math.max(1, changes), watcher.presenceVersion());
+        System.out.println("watcher roster matches ls: " + same + " (" + watcher.roster().size() + " users)");
+        System.exit(same ? 0 : 1);
+    }
+
+    static Wire login(MessageFactory factory, int port, String name) throws Exception {
+        Wire wire = new BinaryWire(new Socket("localhost", port));
+        wire.write(factory.createMessage(MsgType.MSG_HANDSHAKE, name));
+        return wire;
+    }
+}
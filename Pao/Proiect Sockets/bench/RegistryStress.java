@@ -0,0 +1,122 @@
+package bench;
+
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.MessageFactory;
+import common.MsgType;
+import server.ChatProtocol;
+import server.Server;
+import server.Session;
+
+/**
+ * Churn and broadcast at the same time on the server's session registry.
+ * Churn threads log sessions in and out as fast as they can while
+ * broadcasters fan out through ChatProtocol. It checks that nothing
+ * throws, that users present for the whole run got every broadcast
+ * exactly once, and that the session list and nickname map agree at the
+ * end. Exits with status 1 on failure.
+ * Run with: java bench.RegistryStress [stable] [churners] [broadcasters] [seconds]
+ */
+public class RegistryStress
+{
+    static AtomicLong failures = new AtomicLong();
+
+    static class CountingSession extends Session {
+        AtomicLong mReceived = new AtomicLong();
+
+        @Override
+        protected void queued() {
+            while (mOutbox.poll() != null) {
+                mReceived.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // measures the registry in memory, keep the journal out of it
+        System.setProperty("chat.journal.dir", "off");
+        System.setProperty("chat.limit.userRate", "0");
+        System.setProperty("chat.limit.globalRate", "0");
+        int stable = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int churners = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int broadcasters = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final CountingSession[] users = new CountingSession[stable];
+        for (int i = 0; i < stable; i++) {
+            users[i] = new CountingSession();
+            Server.claimNickname(users[i], "stable" + i).join();
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong broadcasts = new AtomicLong();
+        final AtomicLong joins = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(churners + broadcasters);
+        final MessageFactory factory = new MessageFactory();
+
+        for (int c = 0; c < churners; c++) {
+            final int id = c;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int n = 0;
+                        while (running.get()) {
+                            CountingSession s = new CountingSession();
+                            if (!Server.claimNickname(s, "churn" + id + "_" + (n++ % 64)).join()) {
+                                continue;
+                            }
+                            joins.incrementAndGet();
+                            Server.removeClient(s);
+                        }
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        t.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int b = 0; b < broadcasters; b++) {
+            final CountingSession sender = users[b % stable];
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            ChatProtocol.handle(sender, factory.createMessage(MsgType.MSG_BROADCAST, null, "hi"));
+                            broadcasts.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        t.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+
+        long missing = 0;
+        for (CountingSession user : users) {
+            if (user.mReceived.get() != broadcasts.get()) {
+                missing++;
+            }
+        }
+        HashSet<String> listed = new HashSet<String>();
+        for (Session s : Server.mClientsList) {
+            listed.add(s.mNickname);
+        }
+        boolean consistent = listed.equals(Server.mNicknames.keySet()) && listed.size() == stable;
+        boolean ok = failures.get() == 0 && missing == 0 && consistent;
+        System.out.printf("broadcasts=%d (%.0f/s) joins+leaves=%d (%.0f/s) failures=%d short users=%d consistent=%b %s%n",
+            broadcasts.get(), broadcasts.get() / (double) seconds, joins.get(), joins.get() / (double) seconds,
+            failures.get(), missing, consistent, ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,171 @@
+package bench;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import common.BinaryWire;
+import common.Message;
+import common.MessageFactory;
+import common.MsgType;
+import common.ObjectWire;
+import common.Wire;
+
+/**
+ * Load generator for the socket server. Opens N sessions, logs them in,
+ * then issues a send / broad / ls mix at a fixed total rate. Chat bodies
+ * carry the send time, so delivery latency is measured when the message
+ * reaches another simulated client.
+ *
+ * Run with: java bench.SocketLoad [key=value ..]
+ *   host=localhost port=9090 proto=binary|object
+ *   port may list several nodes of a cluster (port=9090,9190,9290); the
+ *   sessions are spread over them round robin, so most chats cross nodes
+ *   sessions=200 rate=1000 (ops/s) seconds=30 mix=80:10:10 (send:broad:ls)
+ * The server refuses more than chat.limit.userRate requests per session;
+ * start it with -Dchat.limit.userRate=0 to load it past that.
+ */
+public class SocketLoad
+{
+    static LatencyHistogram latency = new LatencyHistogram();
+    static AtomicLong sent = new AtomicLong();
+    static AtomicLong replies = new AtomicLong();
+    static AtomicLong delivered = new AtomicLong();
+    static AtomicLong errors = new AtomicLong();
+    static CountDownLatch loggedIn;
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> opt = options(args);
+        String host = opt.getOrDefault("host", "localhost");
+        String[] ports = opt.getOrDefault("port", "9090").split(",");
+        boolean object = opt.getOrDefault("proto", "binary").compareTo("object") == 0;
+        int sessions = Integer.parseInt(opt.getOrDefault("sessions", "200"));
+        int rate = Integer.parseInt(opt.getOrDefault("rate", "1000"));
+        int seconds = Integer.parseInt(opt.getOrDefault("seconds", "30"));
+        String[] mix = opt.getOrDefault("mix", "80:10:10").split(":");
+        int sendWeight = Integer.parseInt(mix[0]);
+        int broadWeight = Integer.parseInt(mix[1]);
+        int lsWeight = Integer.parseInt(mix[2]);
+
+        MessageFactory factory = new MessageFactory();
+        String prefix = "lg" + Long.toString(System.nanoTime() % 100000, 36) + "_";
+        ArrayList<Wire> wires = new ArrayList<Wire>();
+        loggedIn = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Socket socket = new Socket(host, Integer.parseInt(ports[i % ports.length]));
+            socket.setTcpNoDelay(true);
+            final Wire wire = object ? new ObjectWire(socket) : new BinaryWire(socket);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    readLoop(wire);
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            wire.write(factory.createMessage(MsgType.MSG_HANDSHAKE, prefix + i));
+            wires.add(wire);
+        }
+        if (!loggedIn.await(60, TimeUnit.SECONDS)) {
+            System.out.println("only " + (sessions - loggedIn.getCount()) + " sessions logged in");
+        }
+        errors.set(0);
+
+        Random random = new Random();
+        int totalWeight = sendWeight + broadWeight + lsWeight;
+        long interval = 1000000000L / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long next = start;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int i = random.nextInt(sessions);
+            int pick = random.nextInt(totalWeight);
+            Message msg;
+            if (pick < sendWeight) {
+                msg = factory.createMessage(MsgType.MSG_CHAT,
+                    prefix + random.nextInt(sessions), "lg " + System.nanoTime());
+            } else if (pick < sendWeight + broadWeight) {
+                msg = factory.createMessage(MsgType.MSG_BROADCAST, null, "lg " + System.nanoTime());
+            } else {
+                msg = factory.createMessage(MsgType.MSG_LIST);
+            }
+            try {
+                wires.get(i).write(msg);
+                sent.incrementAndGet();
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+            next += interval;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(2000);
+        report(elapsed);
+        for (Wire wire : wires) {
+            try {
+                wire.write(factory.createMessage(MsgType.MSG_DISCONNECT));
+                wire.close();
+            } catch (Exception e) {
+                // already gone
+            }
+        }
+        System.exit(0);
+    }
+
+    static void readLoop(Wire wire) {
+        try {
+            while (true) {
+                Object obj = wire.read();
+                long now = System.nanoTime();
+                if (!(obj instanceof String)) {
+                    continue;
+                }
+                String reply = (String) obj;
+                int mark = reply.lastIndexOf("\"lg ");
+                if (mark >= 0) {
+                    int stop = reply.indexOf('"', mark + 4);
+                    long t = Long.parseLong(reply.substring(mark + 4, stop));
+                    latency.record((now - t) / 1000);
+                    delivered.incrementAndGet();
+                } else if (reply.startsWith("Name set")) {
+                    loggedIn.countDown();
+                } else if (reply.startsWith("Invalid")) {
+                    errors.incrementAndGet();
+                } else if (reply.startsWith("Message sent") || reply.startsWith("Broadcast sent")
+                    || reply.startsWith("Online users")) {
+                    replies.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    static void report(double seconds) {
+        System.out.printf("ops sent       %d (%.0f/s)%n", sent.get(), sent.get() / seconds);
+        System.out.printf("replies        %d%n", replies.get());
+        System.out.printf("delivered      %d (%.0f/s)%n", delivered.get(), delivered.get() / seconds);
+        System.out.printf("errors         %d%n", errors.get());
+        System.out.printf("latency ms     p50 %.3f  p99 %.3f  p999 %.3f%n",
+            latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+            latency.percentile(0.999) / 1000.0);
+    }
+
+    static HashMap<String, String> options(String[] args) {
+        HashMap<String, String> opt = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                opt.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        return opt;
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import common.BinaryCodec;
+import common.Message;
+import common.MessageFactory;
+import common.MsgType;
+
+/**
+ * Bytes per message and encode/decode ns/op of the binary codec against
+ * Java serialization. Run with: java bench.WireBench [iterations]
+ */
+public class WireBench
+{
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        MessageFactory factory = new MessageFactory();
+        Object[] samples = {
+            factory.createMessage(MsgType.MSG_HANDSHAKE, "alice"),
+            factory.createMessage(MsgType.MSG_CHAT, "bob", "hey, are you coming tonight?"),
+            factory.createMessage(MsgType.MSG_BROADCAST, null, "server restarts in 5 minutes"),
+            factory.createMessage(MsgType.MSG_LIST),
+            "User alice tells you: \"hey, are you coming tonight?\"",
+        };
+        System.out.printf("%-18s %10s %10s %12s %12s %12s %12s%n",
+            "sample", "ser bytes", "bin bytes", "ser enc ns", "bin enc ns", "ser dec ns", "bin dec ns");
+        for (Object sample : samples) {
+            byte[] ser = serialize(sample);
+            byte[] bin = BinaryCodec.encode(sample);
+            // warm up both paths before timing
+            run(sample, ser, bin, iterations / 4);
+            long[] ns = run(sample, ser, bin, iterations);
+            String name = sample instanceof Message ? ((Message) sample).getType().toString() : "reply String";
+            System.out.printf("%-18s %10d %10d %12.1f %12.1f %12.1f %12.1f%n",
+                name, ser.length, bin.length,
+                (double) ns[0] / iterations, (double) ns[1] / iterations,
+                (double) ns[2] / iterations, (double) ns[3] / iterations);
+        }
+    }
+
+    static long[] run(Object sample, byte[] ser, byte[] bin, int n) throws Exception {
+        long[] ns = new long[4];
+        long t = System.nanoTime();
+        for (int i = 0; i < n; i++) sink = serialize(sample);
+        ns[0] = System.nanoTime() - t;
+        t = System.nanoTime();
+        for (int i = 0; i < n; i++) sink = BinaryCodec.encode(sample);
+        ns[1] = System.nanoTime() - t;
+        t = System.nanoTime();
+        for (int i = 0; i < n; i++) sink = deserialize(ser);
+        ns[2] = System.nanoTime() - t;
+        t = System.nanoTime();
+        for (int i = 0; i < n; i++) sink = BinaryCodec.decode(bin, 0, bin.length);
+        ns[3] = System.nanoTime() - t;
+        return ns;
+    }
+
+    // One object per stream, i.e. the cost a fresh ObjectOutputStream pays;
+    // a long-lived stream saves the class descriptors but keeps its handle table.
+    static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] data) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -0,0 +1,468 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.Inflater;
+
+import common.BinaryCodec;
+import common.Deflate;
+import common.HandshakeMessage;
+import common.Message;
+import common.MessageFactory;
+import common.MsgType;
+import common.Tagged;
+
+/**
+ * Client library for bots and integrations. Every call returns at once
+ * with a CompletableFuture; requests are pipelined over one connection
+ * and each reply is matched to its request by id (protocol version 2),
+ * so many requests can be outstanding at the same time.
+ *
+ *   ChatClient bot = ChatClient.connect("localhost", 9090, new ChatClient.Listener() {
+ *       public void message(String text) { ... }
+ *       public void closed(Exception cause) { ... }
+ *   });
+ *   bot.login("bot").get();
+ *   bot.send("alice", "hi").thenAccept(r -> ...);
+ *
+ * watch() keeps a copy of who is online, updated by the server's
+ * presence deltas; roster() reads it.
+ *
+ * login asks the server to deflate what it sends (chat.client.compress,
+ * default true); bytesIn() counts what actually came over the wire.
+ *
+ * The listener and the futures complete on the client's reader thread,
+ * so they should hand long work elsewhere. At most chat.client.maxPending
+ * requests (default 65536) wait for a reply; past that new ones fail
+ * right away. The server rate limits each user (chat.limit.userRate);
+ * a bot sending thousands of messages a second needs it raised.
+ */
+public class ChatClient implements Closeable
+{
+    public interface Listener {
+        /** A chat, broadcast or room message from somebody else, or a server notice. */
+        void message(String text);
+        /** The connection is gone; cause is null after close(). */
+        void closed(Exception cause);
+        /** Somebody came or left, while watching presence. */
+        default void presence(String name, boolean online) { }
+    }
+
+    static final int MAX_PENDING = Integer.getInteger("chat.client.maxPending", 65536);
+    // whether login asks for DEFLATED replies by default
+    static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("chat.client.compress", "true"));
+    static final Object CLOSE = new Object();
+
+    private Socket mSocket;
+    private Listener mListener;
+    private MessageFactory mFactory = new MessageFactory();
+    private ConcurrentHashMap<Integer, CompletableFuture<String>> mPending =
+        new ConcurrentHashMap<Integer, CompletableFuture<String>>();
+    private LinkedBlockingQueue<Object> mOut = new LinkedBlockingQueue<Object>();
+    private AtomicInteger mNextId = new AtomicInteger();
+    private volatile boolean mClosed = false;
+    // close() was called, nothing new is accepted
+    private volatile boolean mClosing = false;
+    // presence mirror, only changed on the reader thread; mVersion is -1
+    // until a whole snapshot arrived
+    private ConcurrentSkipListSet<String> mRoster = new ConcurrentSkipListSet<String>();
+    private volatile long mVersion = -1;
+    private long mSnapshotVersion;
+    private int mSnapshotParts;
+    private volatile boolean mWatch = false;
+    private volatile CompletableFuture<Long> mWatching;
+    // bytes read from the server, frames included, as they came over the wire
+    private volatile long mBytesIn = 0;
+    // set before a login that asked for compression, then only used by the reader
+    private volatile Inflater mInflater;
+
+    private ChatClient(Socket socket, Listener listener) {
+        mSocket = socket;
+        mListener = listener;
+    }
+
+    /** Opens the connection; log in before anything else. */
+    public static ChatClient connect(String host, int port, Listener listener) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        final ChatClient client = new ChatClient(socket, listener);
+        OutputStream out = socket.getOutputStream();
+        out.write(BinaryCodec.MAGIC);
+        out.write(BinaryCodec.VERSION);
+        out.flush();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                client.readLoop();
+            }
+        }, "chat-client-reader");
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                client.writeLoop();
+            }
+        }, "chat-client-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+        return client;
+    }
+
+    /** True when the server gave us the name. */
+    public CompletableFuture<Boolean> login(String nickname) {
+        return login(nickname, COMPRESS);
+    }
+
+    /**
+     * Logs in, asking the server to deflate what it sends when compress is
+     * set; it still may not, or stop when it is busy, which is invisible here.
+     */
+    public CompletableFuture<Boolean> login(String nickname, boolean compress) {
+        HandshakeMessage hmsg = (HandshakeMessage) mFactory.createMessage(MsgType.MSG_HANDSHAKE, nickname);
+        if (compress && mInflater == null) {
+            mInflater = Deflate.inflater();
+        }
+        hmsg.deflate = compress;
+        return request(hmsg, new Function<String, Boolean>() {
+            public Boolean apply(String reply) {
+                return reply.startsWith("Name set") || reply.startsWith("Delivered");
+            }
+        });
+    }
+
+    public CompletableFuture<SendResult> send(String to, String body) {
+        return request(mFactory.createMessage(MsgType.MSG_CHAT, to, body), RESULT);
+    }
+
+    public CompletableFuture<SendResult> broadcast(String body) {
+        return request(mFactory.createMessage(MsgType.MSG_BROADCAST, null, body), RESULT);
+    }
+
+    public CompletableFuture<SendResult> room(String room, String body) {
+        return request(mFactory.createMessage(MsgType.MSG_ROOM, room, body), RESULT);
+    }
+
+    public CompletableFuture<String> join(String room) {
+        return request(mFactory.createMessage(MsgType.MSG_JOIN, room));
+    }
+
+    public CompletableFuture<String> leave(String room) {
+        return request(mFactory.createMessage(MsgType.MSG_LEAVE, room));
+    }
+
+    /** Nicknames of all the users online, asked for page by page. */
+    public CompletableFuture<List<String>> list() {
+        return listFrom(null, new ArrayList<String>());
+    }
+
+    private CompletableFuture<List<String>> listFrom(String after, final ArrayList<String> all) {
+        return request(mFactory.createMessage(MsgType.MSG_LIST, null, after, 0)).thenCompose(
+            new Function<String, CompletionStage<List<String>>>() {
+                public CompletionStage<List<String>> apply(String reply) {
+                    all.addAll(names(reply));
+                    String next = nextPage(reply);
+                    if (next == null) {
+                        return CompletableFuture.completedFuture((List<String>) all);
+                    }
+                    return listFrom(next, all);
+                }
+            });
+    }
+
+    /**
+     * One page, in name order: at most count names (0 = the server's page
+     * size) starting with prefix, after the name after. Go on with the last
+     * name of a page until a page comes back empty.
+     */
+    public CompletableFuture<List<String>> list(String prefix, String after, int count) {
+        return request(mFactory.createMessage(MsgType.MSG_LIST, prefix, after, count), new Function<String, List<String>>() {
+            public List<String> apply(String reply) {
+                return names(reply);
+            }
+        });
+    }
+
+    /** The names of a list reply or of a presence line. */
+    static List<String> names(String reply) {
+        int colon = reply.indexOf(":   ");
+        String names = colon < 0 ? "" : reply.substring(colon + 4).trim();
+        return names.length() == 0 ? new ArrayList<String>() : Arrays.asList(names.split(",\\s+"));
+    }
+
+    /** Where the next page starts, null when this was the last one. */
+    static String nextPage(String reply) {
+        String more = "Online users (more after ";
+        int end = reply.indexOf("):   ");
+        return reply.startsWith(more) && end > more.length() ? reply.substring(more.length(), end) : null;
+    }
+
+    /**
+     * Starts presence updates; completes with the version once the whole
+     * snapshot is in roster(). Missed updates make it watch again.
+     */
+    public CompletableFuture<Long> watch() {
+        final CompletableFuture<Long> ready = new CompletableFuture<Long>();
+        mWatching = ready;
+        mWatch = true;
+        request(mFactory.createMessage(MsgType.MSG_PRESENCE, true)).whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String reply, Throwable error) {
+                if (error != null) {
+                    ready.completeExceptionally(error);
+                } else if (reply.compareTo("Watching presence") != 0) {
+                    ready.completeExceptionally(new IOException(reply));
+                }
+            }
+        });
+        return ready;
+    }
+
+    public CompletableFuture<String> unwatch() {
+        mWatch = false;
+        mVersion = -1;
+        return request(mFactory.createMessage(MsgType.MSG_PRESENCE, false));
+    }
+
+    /** Who is online as of presenceVersion(); empty unless watching. */
+    public Set<String> roster() {
+        return Collections.unmodifiableSet(mRoster);
+    }
+
+    /** Version of roster(), -1 while the snapshot is still coming. */
+    public long presenceVersion() {
+        return mVersion;
+    }
+
+    /** Any other request; completes with the server's reply text. */
+    public CompletableFuture<String> request(Message msg) {
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        if (mClosed || mClosing) {
+            reply.completeExceptionally(new IOException("connection closed"));
+            return reply;
+        }
+        if (mPending.size() >= MAX_PENDING) {
+            reply.completeExceptionally(new IOException("too many requests waiting for a reply"));
+            return reply;
+        }
+        int id = nextId();
+        mPending.put(id, reply);
+        mOut.add(new Tagged(id, msg));
+        if (mClosed) {
+            // lost the race with the reader going down
+            fail(id, new IOException("connection closed"));
+        }
+        return reply;
+    }
+
+    <T> CompletableFuture<T> request(Message msg, Function<String, T> convert) {
+        return request(msg).thenApply(convert);
+    }
+
+    static final Function<String, SendResult> RESULT = new Function<String, SendResult>() {
+        public SendResult apply(String reply) {
+            return SendResult.of(reply);
+        }
+    };
+
+    public int pending() {
+        return mPending.size();
+    }
+
+    public long bytesIn() {
+        return mBytesIn;
+    }
+
+    /** Says goodbye to the server; requests still waiting fail. */
+    public void close() {
+        if (mClosed || mClosing) {
+            return;
+        }
+        mClosing = true;
+        mOut.add(mFactory.createMessage(MsgType.MSG_DISCONNECT));
+        mOut.add(CLOSE);
+    }
+
+    private int nextId() {
+        int id;
+        do {
+            id = mNextId.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
+    /** Writes whatever is queued and flushes once the queue runs dry. */
+    void writeLoop() {
+        try {
+            BufferedOutputStream out = new BufferedOutputStream(mSocket.getOutputStream(), 1 << 16);
+            while (true) {
+                Object next = mOut.take();
+                while (next != null && next != CLOSE) {
+                    out.write(BinaryCodec.frame(next));
+                    next = mOut.poll();
+                }
+                out.flush();
+                if (next == CLOSE) {
+                    mSocket.shutdownOutput();
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            shutdown(e);
+        }
+    }
+
+    void readLoop() {
+        Exception cause = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream(), 1 << 16));
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > BinaryCodec.MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                mBytesIn += 4 + length;
+                if (payload[0] == BinaryCodec.DEFLATED) {
+                    if (mInflater == null) {
+                        throw new IOException("deflated frame, but none was asked for");
+                    }
+                    payload = Deflate.inflate(mInflater, payload, 1, length - 1);
+                    length = payload.length;
+                }
+                Object obj = BinaryCodec.decode(payload, 0, length);
+                if (obj instanceof Tagged) {
+                    Tagged reply = (Tagged) obj;
+                    CompletableFuture<String> waiting = mPending.remove(reply.mId);
+                    if (waiting != null) {
+                        waiting.complete((String) reply.mValue);
+                    }
+                } else if (((String) obj).startsWith("Presence v")) {
+                    presence((String) obj);
+                } else if (mListener != null) {
+                    mListener.message((String) obj);
+                }
+            }
+        } catch (EOFException e) {
+            // server closed the connection
+        } catch (Exception e) {
+            cause = e;
+        }
+        // only the reader used it
+        Inflater inflater = mInflater;
+        if (inflater != null) {
+            mInflater = null;
+            inflater.end();
+        }
+        shutdown(cause);
+    }
+
+    /** Applies a snapshot part or a delta; on the reader thread. */
+    private void presence(String text) {
+        if (!mWatch) {
+            return;
+        }
+        int colon = text.indexOf(':');
+        String[] head = text.substring("Presence v".length(), colon < 0 ? text.length() : colon).split(" ");
+        long version = Long.parseLong(head[0]);
+        List<String> names = names(text);
+        if (head.length == 3) {
+            // "<version> snapshot <part>/<parts>"
+            int slash = head[2].indexOf('/');
+            int part = Integer.parseInt(head[2].substring(0, slash));
+            int parts = Integer.parseInt(head[2].substring(slash + 1));
+            if (part == 1) {
+                mVersion = -1;
+                mRoster.clear();
+                mSnapshotVersion = version;
+                mSnapshotParts = 0;
+            }
+            if (version != mSnapshotVersion || part != mSnapshotParts + 1) {
+                rewatch();
+                return;
+            }
+            mSnapshotParts = part;
+            mRoster.addAll(names);
+            if (part == parts) {
+                mVersion = version;
+                CompletableFuture<Long> ready = mWatching;
+                if (ready != null) {
+                    ready.complete(version);
+                }
+            }
+            return;
+        }
+        if (mVersion < 0) {
+            // left over from before the snapshot, which has it already
+            return;
+        }
+        if (version != mVersion + 1) {
+            rewatch();
+            return;
+        }
+        mVersion = version;
+        for (String change : names) {
+            boolean online = change.charAt(0) == '+';
+            String name = change.substring(1);
+            if (online) {
+                mRoster.add(name);
+            } else {
+                mRoster.remove(name);
+            }
+            if (mListener != null) {
+                mListener.presence(name, online);
+            }
+        }
+    }
+
+    /** An update went missing; start over from a new snapshot. */
+    private void rewatch() {
+        mVersion = -1;
+        request(mFactory.createMessage(MsgType.MSG_PRESENCE, true));
+    }
+
+    private void shutdown(Exception cause) {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        mOut.add(CLOSE);
+        IOException failure = new IOException("connection closed", cause);
+        for (Map.Entry<Integer, CompletableFuture<String>> e : mPending.entrySet()) {
+            fail(e.getKey(), failure);
+        }
+        if (mListener != null) {
+            mListener.closed(cause);
+        }
+    }
+
+    private void fail(int id, IOException failure) {
+        CompletableFuture<String> waiting = mPending.remove(id);
+        if (waiting != null) {
+            waiting.completeExceptionally(failure);
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package client;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
@@ -12,6 +10,11 @@ import javax.swing.JOptionPane;
 import common.MsgType;
 import common.Message;
 import common.MessageFactory;
+import common.Wire;
+import common.ObjectWire;
+import common.BinaryWire;
+import common.HistoryMessage;
+import common.HandshakeMessage;
 
 class ClientStatus {
     private static Boolean loggedIn = false;
@@ -26,7 +29,7 @@ class ClientStatus {
 class ClientConsole extends Thread
 {
     private MessageFactory messageFactoryInstance = new MessageFactory();
-    ObjectOutputStream mStreamToServer;
+    Wire mStreamToServer;
 
     public Message parseMessage(String msgText)
     {
@@ -35,7 +38,14 @@ class ClientConsole extends Thread
             return null;
         }
         if (ClientStatus.getLoggedIn() == false) {
-            return messageFactoryInstance.createMessage(MsgType.MSG_HANDSHAKE, tokens[0]);
+            HandshakeMessage hmsg = (HandshakeMessage) messageFactoryInstance.createMessage(MsgType.MSG_HANDSHAKE, tokens[0]);
+            // ask for compressed replies unless -Dchat.client.compress=false; the binary wire only
+            if (mStreamToServer instanceof BinaryWire
+                    && Boolean.parseBoolean(System.getProperty("chat.client.compress", "true"))) {
+                hmsg.deflate = true;
+                ((BinaryWire) mStreamToServer).inflateReplies();
+            }
+            return hmsg;
         }
         Message msg = null;
         if (tokens[0].compareTo("send") == 0 && tokens.length >= 3) {
@@ -58,14 +68,73 @@ class ClientConsole extends Thread
                 null,
                 String.join(" ", msgTokens)
             );
+        } else if (tokens[0].compareTo("join") == 0 && tokens.length == 2) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_JOIN, tokens[1]);
+        } else if (tokens[0].compareTo("leave") == 0 && tokens.length == 2) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_LEAVE, tokens[1]);
+        } else if (tokens[0].compareTo("room") == 0 && tokens.length >= 3) {
+            final String[] msgTokens = new String[tokens.length - 2];
+            for (int i = 2; i < tokens.length; i++) {
+                msgTokens[i - 2] = tokens[i];
+            }
+            msg = messageFactoryInstance.createMessage(
+                MsgType.MSG_ROOM,
+                tokens[1],
+                String.join(" ", msgTokens)
+            );
+        } else if (tokens[0].compareTo("history") == 0 && tokens.length >= 2) {
+            msg = parseHistory(tokens);
         } else if (tokens[0].compareTo("disconnect") == 0) {
             msg = messageFactoryInstance.createMessage(MsgType.MSG_DISCONNECT);
         } else if (tokens[0].compareTo("ls") == 0) {
-            msg = messageFactoryInstance.createMessage(MsgType.MSG_LIST);
+            msg = parseList(tokens);
+        } else if (tokens[0].compareTo("watch") == 0 && tokens.length == 1) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_PRESENCE, true);
+        } else if (tokens[0].compareTo("unwatch") == 0 && tokens.length == 1) {
+            msg = messageFactoryInstance.createMessage(MsgType.MSG_PRESENCE, false);
         }
         return msg;
     }
-    public ClientConsole(ObjectOutputStream streamToServer) {
+    /** ls [prefix] [count] [after <user>] */
+    Message parseList(String[] tokens) {
+        String prefix = null;
+        String after = null;
+        int count = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].compareTo("after") == 0 && i + 1 < tokens.length) {
+                after = tokens[++i];
+            } else if (tokens[i].matches("[0-9]{1,6}")) {
+                count = Integer.parseInt(tokens[i]);
+            } else if (prefix == null) {
+                prefix = tokens[i];
+            } else {
+                return null;
+            }
+        }
+        return messageFactoryInstance.createMessage(MsgType.MSG_LIST, prefix, after, count);
+    }
+    /** history <user|*> [count] [since <time>] [before <time>] */
+    Message parseHistory(String[] tokens) {
+        int count = 20;
+        long since = 0;
+        long until = Long.MAX_VALUE;
+        for (int i = 2; i < tokens.length; i++) {
+            if (tokens[i].compareTo("since") == 0 && i + 1 < tokens.length) {
+                since = HistoryMessage.parseTime(tokens[++i]);
+            } else if (tokens[i].compareTo("before") == 0 && i + 1 < tokens.length) {
+                until = HistoryMessage.parseTime(tokens[++i]);
+            } else if (tokens[i].matches("[0-9]{1,6}")) {
+                count = Integer.parseInt(tokens[i]);
+            } else {
+                return null;
+            }
+            if (since < 0 || until < 0) {
+                return null;
+            }
+        }
+        return messageFactoryInstance.createMessage(MsgType.MSG_HISTORY, tokens[1], count, since, until);
+    }
+    public ClientConsole(Wire streamToServer) {
         this.mStreamToServer = streamToServer;
     }
     public void run()
@@ -78,7 +147,7 @@ class ClientConsole extends Thread
                 System.out.println("Incorrect message format, try again:");
             } else {
                 try {
-                    mStreamToServer.writeObject(msg);
+                    mStreamToServer.write(msg);
                 }
                 catch (Exception e) {
                     System.out.println(e.getMessage());
@@ -94,14 +163,14 @@ class ClientConsole extends Thread
 
 class ClientListener extends Thread
 {
-    ObjectInputStream mStreamFromServer;
-    public ClientListener(ObjectInputStream streamFromServer) {
+    Wire mStreamFromServer;
+    public ClientListener(Wire streamFromServer) {
         this.mStreamFromServer = streamFromServer;
     }
     public void run() {
         try {
             while(true) {
-                String message = (String) mStreamFromServer.readObject();
+                String message = (String) mStreamFromServer.read();
                 if(message.contains("Name set")) {
                     ClientStatus.setLoggedIn(true);
                 }
@@ -115,14 +184,25 @@ class ClientListener extends Thread
 
 public class Client
 {
+    /**
+     * Usage: java client.Client [object]
+     * Speaks the binary protocol; pass object to use Java serialization
+     * (blocking server only). -Dchat.port picks the server port.
+     */
     public static void main(String[] args)
     {
         try {
             //JOptionPane.showInputDialog("enter IP " + "(running on port 9090");
             String serverAddress = "localhost";
-            Socket clientSocket = new Socket(serverAddress, 9090);
-            ClientConsole cc = new ClientConsole(new ObjectOutputStream(clientSocket.getOutputStream()));
-            ClientListener cl = new ClientListener(new ObjectInputStream(clientSocket.getInputStream()));
+            Socket clientSocket = new Socket(serverAddress, Integer.getInteger("chat.port", 9090));
+            Wire wire;
+            if (args.length > 0 && args[0].compareTo("object") == 0) {
+                wire = new ObjectWire(clientSocket);
+            } else {
+                wire = new BinaryWire(clientSocket);
+            }
+            ClientConsole cc = new ClientConsole(wire);
+            ClientListener cl = new ClientListener(wire);
             cc.start();
             cl.start();
             synchronized (cc) { cc.wait(); }
@@ -0,0 +1,322 @@
+
+package common;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Compact encoding of messages and reply strings. A payload starts with
+ * one kind byte (the MsgType ordinal, or REPLY for server text), then
+ * the fields: strings as int length + UTF-8 bytes, timestamps as epoch
+ * millis. The source of a chat is filled in by the server, so it is not
+ * sent. Framing (length prefix) is done by the wire.
+ *
+ * Version 2 adds TAGGED: kind, int request id, then a whole payload as
+ * above. A peer only gets tagged frames back for tagged requests, so
+ * version 1 clients see no difference. A handshake may end in a flag
+ * byte asking for DEFLATED frames (see Deflate); older servers ignore it.
+ */
+public class BinaryCodec
+{
+    /** First byte a binary client sends, followed by its VERSION. */
+    public static final byte MAGIC = (byte) 0xC4;
+    public static final byte VERSION = 2;
+    public static final byte REPLY = 0x7F;
+    public static final byte TAGGED = 0x7E;
+    public static final byte DEFLATED = 0x7D;
+    public static final int MAX_FRAME = 1 << 20;
+
+    private static final MsgType[] TYPES = MsgType.values();
+
+    public static byte[] encode(Object obj) {
+        if (obj instanceof Tagged) {
+            byte[] inner = encode(((Tagged) obj).mValue);
+            ByteBuffer buf = ByteBuffer.allocate(1 + 4 + inner.length);
+            buf.put(TAGGED);
+            buf.putInt(((Tagged) obj).mId);
+            buf.put(inner);
+            return buf.array();
+        }
+        if (obj instanceof String) {
+            byte[] text = utf8((String) obj);
+            ByteBuffer buf = ByteBuffer.allocate(1 + sizeOf(text));
+            buf.put(REPLY);
+            putBytes(buf, text);
+            return buf.array();
+        }
+        Message msg = (Message) obj;
+        byte kind = (byte) msg.getType().ordinal();
+        switch(msg.getType()) {
+            case MSG_DISCONNECT:
+                return new byte[] { kind };
+            case MSG_LIST:
+            {
+                ListMessage lmsg = (ListMessage) msg;
+                if (lmsg.prefix == null && lmsg.after == null && lmsg.count == 0) {
+                    // the whole first page, as version 1 sent it
+                    return new byte[] { kind };
+                }
+                byte[] prefix = utf8(lmsg.prefix);
+                byte[] after = utf8(lmsg.after);
+                ByteBuffer buf = ByteBuffer.allocate(1 + sizeOf(prefix) + sizeOf(after) + 4);
+                buf.put(kind);
+                putBytes(buf, prefix);
+                putBytes(buf, after);
+                buf.putInt(lmsg.count);
+                return buf.array();
+            }
+            case MSG_PRESENCE:
+                return new byte[] { kind, (byte) (((PresenceMessage) msg).watch ? 1 : 0) };
+            case MSG_HANDSHAKE:
+            case MSG_JOIN:
+            case MSG_LEAVE:
+            {
+                byte[] name = utf8(nameOf(msg));
+                boolean deflate = msg instanceof HandshakeMessage && ((HandshakeMessage) msg).deflate;
+                ByteBuffer buf = ByteBuffer.allocate(1 + sizeOf(name) + (deflate ? 1 : 0));
+                buf.put(kind);
+                putBytes(buf, name);
+                if (deflate) {
+                    buf.put((byte) 1);
+                }
+                return buf.array();
+            }
+            case MSG_CHAT:
+            case MSG_BROADCAST:
+            case MSG_ROOM:
+            {
+                ChatMessage cmsg = (ChatMessage) msg;
+                byte[] destination = utf8(cmsg.mDestination);
+                byte[] body = utf8(cmsg.mBody);
+                ByteBuffer buf = ByteBuffer.allocate(1 + 8 + sizeOf(destination) + sizeOf(body));
+                buf.put(kind);
+                buf.putLong(cmsg.mTimeSent.getTime());
+                putBytes(buf, destination);
+                putBytes(buf, body);
+                return buf.array();
+            }
+            case MSG_HISTORY:
+            {
+                HistoryMessage hmsg = (HistoryMessage) msg;
+                byte[] peer = utf8(hmsg.peer);
+                ByteBuffer buf = ByteBuffer.allocate(1 + sizeOf(peer) + 4 + 8 + 8);
+                buf.put(kind);
+                putBytes(buf, peer);
+                buf.putInt(hmsg.count);
+                buf.putLong(hmsg.since);
+                buf.putLong(hmsg.until);
+                return buf.array();
+            }
+            default:
+                assert false: "invalid message structure: " + msg.getType();
+                return null;
+        }
+    }
+
+    /** Payload with its 4 byte length prefix, ready for the socket. */
+    public static byte[] frame(Object obj) {
+        if (obj instanceof Encoded) {
+            return ((Encoded) obj).frame();
+        }
+        byte[] payload = encode(obj);
+        return ByteBuffer.allocate(4 + payload.length).putInt(payload.length).put(payload).array();
+    }
+
+    /** Size of the framed reply putReply writes for text; id 0 is untagged. */
+    public static int replyFrameLength(int id, String text) {
+        return 4 + (id == 0 ? 0 : 1 + 4) + 1 + 4 + utf8Length(text);
+    }
+
+    /**
+     * Writes text as a framed reply at out's position, tagged with id
+     * unless it is 0. The UTF-8 is encoded in place so no intermediate
+     * array is made. out needs replyFrameLength(id, text) bytes of room.
+     */
+    public static void putReply(ByteBuffer out, int id, String text) {
+        int length = utf8Length(text);
+        if (id == 0) {
+            out.putInt(1 + 4 + length);
+        } else {
+            out.putInt(1 + 4 + 1 + 4 + length);
+            out.put(TAGGED);
+            out.putInt(id);
+        }
+        out.put(REPLY);
+        out.putInt(length);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, String.getBytes writes '?' too
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    static int utf8Length(String text) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n += 1;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    public static Object decode(byte[] data, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("empty payload");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+        byte kind = buf.get();
+        if (kind == REPLY) {
+            return getString(buf);
+        }
+        if (kind == TAGGED && length > 5) {
+            int id = buf.getInt();
+            Object inner = decode(data, offset + 5, length - 5);
+            if (inner instanceof Tagged) {
+                throw new IOException("nested tag");
+            }
+            return new Tagged(id, inner);
+        }
+        if (kind < 0 || kind >= TYPES.length) {
+            throw new IOException("unknown message kind " + kind);
+        }
+        switch(TYPES[kind]) {
+            case MSG_DISCONNECT:
+                return new DisconnectMessage();
+            case MSG_LIST:
+            {
+                ListMessage msg = new ListMessage();
+                if (buf.hasRemaining()) {
+                    msg.prefix = getString(buf);
+                    msg.after = getString(buf);
+                    msg.count = buf.getInt();
+                }
+                return msg;
+            }
+            case MSG_PRESENCE:
+            {
+                PresenceMessage msg = new PresenceMessage();
+                msg.watch = buf.get() != 0;
+                return msg;
+            }
+            case MSG_HANDSHAKE:
+            {
+                HandshakeMessage msg = new HandshakeMessage();
+                msg.name = getString(buf);
+                msg.deflate = buf.hasRemaining() && buf.get() != 0;
+                return msg;
+            }
+            case MSG_JOIN:
+            {
+                JoinMessage msg = new JoinMessage();
+                msg.room = getString(buf);
+                return msg;
+            }
+            case MSG_LEAVE:
+            {
+                LeaveMessage msg = new LeaveMessage();
+                msg.room = getString(buf);
+                return msg;
+            }
+            case MSG_CHAT:
+            case MSG_BROADCAST:
+            case MSG_ROOM:
+            {
+                ChatMessage msg;
+                if (TYPES[kind] == MsgType.MSG_CHAT) {
+                    msg = new ChatMessage();
+                } else if (TYPES[kind] == MsgType.MSG_BROADCAST) {
+                    msg = new BroadcastMessage();
+                } else {
+                    msg = new RoomMessage();
+                }
+                msg.mTimeSent = new Date(buf.getLong());
+                msg.mDestination = getString(buf);
+                msg.mBody = getString(buf);
+                return msg;
+            }
+            case MSG_HISTORY:
+            {
+                HistoryMessage msg = new HistoryMessage();
+                msg.peer = getString(buf);
+                msg.count = buf.getInt();
+                msg.since = buf.getLong();
+                msg.until = buf.getLong();
+                return msg;
+            }
+            default:
+                throw new IOException("unknown message kind " + kind);
+        }
+    }
+
+    private static String nameOf(Message msg) {
+        switch(msg.getType()) {
+            case MSG_JOIN:
+                return ((JoinMessage) msg).room;
+            case MSG_LEAVE:
+                return ((LeaveMessage) msg).room;
+            default:
+                return ((HandshakeMessage) msg).name;
+        }
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) throws IOException {
+        int n = buf.getInt();
+        if (n == -1) {
+            return null;
+        }
+        if (n < 0 || n > buf.remaining()) {
+            throw new IOException("bad string length " + n);
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+        buf.position(buf.position() + n);
+        return s;
+    }
+}
@@ -0,0 +1,151 @@
+
+package common;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed frames carrying BinaryCodec payloads. The client opens
+ * the connection with MAGIC and its protocol version; the server reads
+ * them back before anything else.
+ */
+public class BinaryWire implements Wire
+{
+    private Socket mSocket;
+    private DataOutputStream mOut;
+    private DataInputStream mIn;
+    public int mPeerVersion;
+    // not synchronized: that would pin a virtual thread while it writes
+    private ReentrantLock mWriteLock = new ReentrantLock();
+    // server side, once the peer asked for DEFLATED frames: its stream
+    private Deflater mDeflater;
+    private ByteBuffer mDeflated;
+    // client side, once we asked for them
+    private volatile Inflater mInflater;
+    private volatile boolean mClosed = false;
+
+    /** Client side: announces the protocol right away. */
+    public BinaryWire(Socket socket) throws IOException {
+        this(socket, new BufferedInputStream(socket.getInputStream()));
+        mOut.writeByte(BinaryCodec.MAGIC);
+        mOut.writeByte(BinaryCodec.VERSION);
+        mOut.flush();
+    }
+
+    /** Server side: the peer already picked this protocol, check its version. */
+    public static BinaryWire accept(Socket socket, InputStream in) throws IOException {
+        BinaryWire wire = new BinaryWire(socket, in);
+        if (wire.mIn.readByte() != BinaryCodec.MAGIC) {
+            throw new IOException("not a binary client");
+        }
+        wire.mPeerVersion = wire.mIn.readUnsignedByte();
+        if (wire.mPeerVersion < 1 || wire.mPeerVersion > BinaryCodec.VERSION) {
+            throw new IOException("unsupported protocol version " + wire.mPeerVersion);
+        }
+        return wire;
+    }
+
+    private BinaryWire(Socket socket, InputStream in) throws IOException {
+        mSocket = socket;
+        mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        mIn = new DataInputStream(in);
+    }
+
+    @Override
+    public void write(Object obj) throws IOException {
+        mWriteLock.lock();
+        try {
+            mOut.write(BinaryCodec.frame(obj));
+            mOut.flush();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a frame (BinaryCodec.frame) as a DEFLATED frame, continuing
+     * this connection's stream; only for peers that asked for it in their
+     * handshake. Returns the bytes written.
+     */
+    public int writeDeflated(byte[] frame) throws IOException {
+        mWriteLock.lock();
+        try {
+            if (mClosed) {
+                throw new IOException("wire closed");
+            }
+            if (mDeflater == null) {
+                mDeflater = Deflate.deflater();
+                mDeflated = ByteBuffer.allocate(1024);
+            }
+            mDeflated.clear();
+            mDeflated = Deflate.frame(mDeflater, ByteBuffer.wrap(frame, 4, frame.length - 4), mDeflated);
+            mOut.write(mDeflated.array(), 0, mDeflated.position());
+            mOut.flush();
+            return mDeflated.position();
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /** Client side: call before sending a handshake that asks for DEFLATED frames. */
+    public void inflateReplies() {
+        if (mInflater == null) {
+            mInflater = Deflate.inflater();
+        }
+    }
+
+    @Override
+    public Object read() throws IOException {
+        int length = mIn.readInt();
+        if (length < 1 || length > BinaryCodec.MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        mIn.readFully(payload);
+        if (payload[0] == BinaryCodec.DEFLATED) {
+            Inflater inflater = mInflater;
+            if (inflater == null) {
+                throw new IOException("deflated frame, but none was asked for");
+            }
+            // close() may end it from another thread
+            synchronized (inflater) {
+                if (mClosed) {
+                    throw new IOException("wire closed");
+                }
+                payload = Deflate.inflate(inflater, payload, 1, length - 1);
+            }
+            return BinaryCodec.decode(payload, 0, payload.length);
+        }
+        return BinaryCodec.decode(payload, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mSocket.close();
+        // zlib memory is native, end the streams instead of waiting for the GC
+        mWriteLock.lock();
+        try {
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        Inflater inflater = mInflater;
+        if (inflater != null) {
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection compression of server frames, asked for in the
+ * HandshakeMessage. Each connection has one raw deflate stream
+ * (Deflater on the server, Inflater on the client) primed with
+ * DICTIONARY and kept for the life of the connection, so the protocol
+ * text and whatever was said recently compress to a few bytes.
+ *
+ * A DEFLATED frame is kind DEFLATED, then the deflated payload up to a
+ * sync flush, without the flush marker 00 00 FF FF every flush ends in
+ * (the reader puts it back). The payload inside is an ordinary one. The
+ * server may send any frame uncompressed; the stream just continues with
+ * the next compressed one.
+ */
+public final class Deflate
+{
+    /** chat.compress.level, 1 (fast) .. 9 (small); default 6. */
+    static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.DEFAULT_COMPRESSION);
+
+    // what the server says most, most frequent last (closest to the data)
+    public static final byte[] DICTIONARY = String.join("",
+        "Enter your nickname:", "Invalid name, try again:", "Log in first", "Invalid recipient",
+        "Rate limit exceeded, slow down", " older offline messages skipped", "Delivered ", " offline messages",
+        "History with ", "Broadcast history:", " no messages", " -> everybody: \"", " -> ",
+        "Watching presence", "Presence updates off", "Joined room ", "Left room ", "Not in room ",
+        "Online users (more after ", "Presence v", " snapshot 1/1:   ", "Online users:   ",
+        " is offline, message saved", "Name set: ", "Room message sent", "] User ", " says: \"",
+        "Broadcast sent", " broadcast to everybody: \"", "Message sent", "User ", " tells you: \""
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] FLUSH_MARKER = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private Deflate() { }
+
+    /** The owner must end() it when the connection closes; zlib's memory is not on the heap. */
+    public static Deflater deflater() {
+        Deflater deflater = new Deflater(LEVEL, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    /** Same as deflater(): end() it on close. */
+    public static Inflater inflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    /**
+     * Deflates payload (one payload, no length prefix) and appends it to
+     * out as a whole DEFLATED frame, length prefix included. Returns out,
+     * or a bigger copy of it when it ran full.
+     */
+    public static ByteBuffer frame(Deflater deflater, ByteBuffer payload, ByteBuffer out) {
+        int start = out.position();
+        out = room(out, 5 + payload.remaining() / 2 + 16);
+        out.position(start + 4);
+        out.put(BinaryCodec.DEFLATED);
+        deflater.setInput(payload);
+        while (true) {
+            deflater.deflate(out, Deflater.SYNC_FLUSH);
+            if (out.hasRemaining()) {
+                break;
+            }
+            // full: there may be more, give it room
+            out = room(out, out.capacity());
+        }
+        // drop the marker, it is the same for every frame
+        out.position(out.position() - FLUSH_MARKER.length);
+        out.putInt(start, out.position() - start - 4);
+        return out;
+    }
+
+    /** out with at least more bytes free after its position. */
+    private static ByteBuffer room(ByteBuffer out, int more) {
+        if (out.remaining() >= more) {
+            return out;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + more));
+        out.flip();
+        bigger.put(out);
+        return bigger;
+    }
+
+    /** The payload inside a DEFLATED frame; data[offset] is the byte after the kind. */
+    public static byte[] inflate(Inflater inflater, byte[] data, int offset, int length) throws IOException {
+        byte[] out = new byte[Math.max(64, length * 4)];
+        int n = 0;
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                if (pass == 0) {
+                    inflater.setInput(data, offset, length);
+                } else {
+                    inflater.setInput(FLUSH_MARKER);
+                }
+                while (true) {
+                    if (n == out.length) {
+                        if (n >= BinaryCodec.MAX_FRAME) {
+                            throw new IOException("deflated frame too big");
+                        }
+                        out = Arrays.copyOf(out, n * 2);
+                    }
+                    int got = inflater.inflate(out, n, out.length - n);
+                    n += got;
+                    if (got == 0) {
+                        if (inflater.needsInput() || inflater.finished()) {
+                            break;
+                        }
+                        if (inflater.needsDictionary()) {
+                            throw new IOException("deflated frame wants a dictionary");
+                        }
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad deflated frame: " + e.getMessage());
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
@@ -0,0 +1,29 @@
+
+package common;
+
+/**
+ * A reply encoded once and shared by every recipient, e.g. a broadcast.
+ * The frame is never modified after construction; writers only read it.
+ */
+public final class Encoded
+{
+    public final Object mValue;
+    // System.nanoTime() when the message was accepted, 0 if not timed
+    public final long mCreated;
+    private final byte[] mFrame;
+
+    public Encoded(Object value) {
+        this(value, 0);
+    }
+
+    public Encoded(Object value, long created) {
+        mValue = value;
+        mCreated = created;
+        mFrame = BinaryCodec.frame(value);
+    }
+
+    /** Length-prefixed binary frame, shared: do not modify. */
+    public byte[] frame() {
+        return mFrame;
+    }
+}
@@ -4,7 +4,9 @@ package common;
 public class HandshakeMessage implements Message
 {
     public String name;
-    
+    // the client can read DEFLATED frames and would like them, see Deflate
+    public boolean deflate = false;
+
     public HandshakeMessage() { }
 
     @Override
@@ -0,0 +1,19 @@
+
+package common;
+
+public class JoinMessage implements Message
+{
+    public String room;
+
+    public JoinMessage() { }
+
+    @Override
+    public MsgType getType() {
+        return MsgType.MSG_JOIN;
+    }
+
+    @Override
+    public String stringFormat() {
+        return "Joined room " + this.room;
+    }
+}
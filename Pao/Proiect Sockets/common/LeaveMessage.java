@@ -0,0 +1,19 @@
+
+package common;
+
+public class LeaveMessage implements Message
+{
+    public String room;
+
+    public LeaveMessage() { }
+
+    @Override
+    public MsgType getType() {
+        return MsgType.MSG_LEAVE;
+    }
+
+    @Override
+    public String stringFormat() {
+        return "Left room " + this.room;
+    }
+}
@@ -1,8 +1,16 @@
-
 package common;
 
+/**
+ * Asks for one page of the users online, in name order: at most count
+ * names (0 = the server's page size) starting with prefix, after the
+ * name after. All null / 0 lists from the start.
+ */
 public class ListMessage implements Message
 {   
+    public String prefix;
+    public String after;
+    public int count = 0;
+
     public ListMessage() { }
 
     @Override
@@ -14,4 +22,4 @@ public class ListMessage implements Message
     public String stringFormat() {
         return "Requesting online users list";
     }
-}
\ No newline at end of file
+}
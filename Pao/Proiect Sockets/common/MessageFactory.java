@@ -9,6 +9,8 @@ public class MessageFactory {
                 return new DisconnectMessage();
             case MSG_LIST:
                 return new ListMessage();
+            case MSG_PRESENCE:
+                return new PresenceMessage();
             default:
                 assert false: "invalid message structure: " + type;
                 return null;
@@ -28,6 +30,50 @@ public class MessageFactory {
                 bmsg.mDestination = "<everyone>";
                 bmsg.mBody = body;
                 return bmsg;
+            case MSG_ROOM:
+                RoomMessage rmsg = new RoomMessage();
+                rmsg.mSource = "<me>";
+                rmsg.mDestination = destination;
+                rmsg.mBody = body;
+                return rmsg;
+            default:
+                assert false: "invalid message structure: " + type;
+                return null;
+        }
+    }
+    public Message createMessage(MsgType type, String peer, int count, long since, long until) {
+        switch(type) {
+            case MSG_HISTORY:
+                HistoryMessage msg = new HistoryMessage();
+                msg.peer = peer;
+                msg.count = count;
+                msg.since = since;
+                msg.until = until;
+                return msg;
+            default:
+                assert false: "invalid message structure: " + type;
+                return null;
+        }
+    }
+    public Message createMessage(MsgType type, String prefix, String after, int count) {
+        switch(type) {
+            case MSG_LIST:
+                ListMessage msg = new ListMessage();
+                msg.prefix = prefix;
+                msg.after = after;
+                msg.count = count;
+                return msg;
+            default:
+                assert false: "invalid message structure: " + type;
+                return null;
+        }
+    }
+    public Message createMessage(MsgType type, boolean on) {
+        switch(type) {
+            case MSG_PRESENCE:
+                PresenceMessage msg = new PresenceMessage();
+                msg.watch = on;
+                return msg;
             default:
                 assert false: "invalid message structure: " + type;
                 return null;
@@ -39,6 +85,14 @@ public class MessageFactory {
                 HandshakeMessage msg = new HandshakeMessage();
                 msg.name = name;
                 return msg;
+            case MSG_JOIN:
+                JoinMessage jmsg = new JoinMessage();
+                jmsg.room = name;
+                return jmsg;
+            case MSG_LEAVE:
+                LeaveMessage lmsg = new LeaveMessage();
+                lmsg.room = name;
+                return lmsg;
             default:
                 assert false: "invalid message structure: " + type;
                 return null;
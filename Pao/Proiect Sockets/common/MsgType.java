@@ -7,4 +7,9 @@ public enum MsgType {
     MSG_BROADCAST,
     MSG_LIST,
     MSG_HANDSHAKE,
+    MSG_JOIN,
+    MSG_LEAVE,
+    MSG_ROOM,
+    MSG_HISTORY,
+    MSG_PRESENCE,
 };
\ No newline at end of file
@@ -0,0 +1,49 @@
+
+package common;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+/**
+ * The original protocol: one ObjectOutputStream / ObjectInputStream
+ * pair kept open for the whole connection.
+ */
+public class ObjectWire implements Wire
+{
+    private Socket mSocket;
+    private ObjectOutputStream mOut;
+    private ObjectInputStream mIn;
+
+    public ObjectWire(Socket socket) throws IOException {
+        this(socket, socket.getInputStream());
+    }
+
+    public ObjectWire(Socket socket, InputStream in) throws IOException {
+        mSocket = socket;
+        // Both sides write their stream header first, so nobody blocks here.
+        mOut = new ObjectOutputStream(socket.getOutputStream());
+        mOut.flush();
+        mIn = new ObjectInputStream(in);
+    }
+
+    @Override
+    public void write(Object obj) throws IOException {
+        if (obj instanceof Encoded) {
+            // the shared String is written as a back reference after the first time
+            obj = ((Encoded) obj).mValue;
+        }
+        mOut.writeObject(obj);
+    }
+
+    @Override
+    public Object read() throws IOException, ClassNotFoundException {
+        return mIn.readObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
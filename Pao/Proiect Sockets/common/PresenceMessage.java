@@ -0,0 +1,22 @@
+package common;
+
+/**
+ * Starts (or stops) presence updates: one snapshot of the users online,
+ * then only who came and who left, each update numbered by version.
+ */
+public class PresenceMessage implements Message
+{
+    public boolean watch = true;
+
+    public PresenceMessage() { }
+
+    @Override
+    public MsgType getType() {
+        return MsgType.MSG_PRESENCE;
+    }
+
+    @Override
+    public String stringFormat() {
+        return this.watch ? "Watching presence" : "Presence updates off";
+    }
+}
@@ -0,0 +1,18 @@
+package common;
+
+/**
+ * A request or reply carrying the id that pairs them up. Clients that
+ * pipeline (client.ChatClient) tag each request; the server answers a
+ * tagged request with a reply tagged the same, and leaves everything
+ * else (chats from other users, untagged requests) untagged.
+ */
+public final class Tagged
+{
+    public final int mId;
+    public final Object mValue;
+
+    public Tagged(int id, Object value) {
+        mId = id;
+        mValue = value;
+    }
+}
@@ -0,0 +1,14 @@
+
+package common;
+import java.io.IOException;
+
+/**
+ * One side of a client/server connection. Hides how messages and
+ * reply strings are put on the socket.
+ */
+public interface Wire
+{
+    void write(Object obj) throws IOException;
+    Object read() throws IOException, ClassNotFoundException;
+    void close() throws IOException;
+}
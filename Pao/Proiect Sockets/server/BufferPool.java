@@ -0,0 +1,89 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers for outbound frames, in a few size classes. Buffers are
+ * cut from 1 MB slabs and come back here when the last reference to
+ * their Frame is released, so under steady load the nio writers encode
+ * into memory that already exists instead of making garbage.
+ *
+ * Frames over the largest class are one-off buffers left to the GC.
+ * At most chat.pool.keep free frames are kept per class (default 8192);
+ * extra ones are dropped when released.
+ */
+public class BufferPool
+{
+    static final int[] SIZES = { 256, 1024, 4096, 16384, 65536 };
+    static final int SLAB = 1 << 20;
+    static final int KEEP = Integer.getInteger("chat.pool.keep", 8192);
+
+    // free frames per size class
+    static ArrayList<ArrayBlockingQueue<Frame>> mFree = new ArrayList<ArrayBlockingQueue<Frame>>();
+    static {
+        for (int i = 0; i < SIZES.length; i++) {
+            mFree.add(new ArrayBlockingQueue<Frame>(KEEP));
+        }
+    }
+
+    public static AtomicLong mSlabs = new AtomicLong();
+    public static AtomicLong mOversize = new AtomicLong();
+
+    /** A frame with room for length bytes, holding one reference. */
+    static Frame acquire(int length) {
+        int c = sizeClass(length);
+        if (c < 0) {
+            mOversize.incrementAndGet();
+            return new Frame(Frame.UNPOOLED, ByteBuffer.allocateDirect(length), false);
+        }
+        Frame frame = mFree.get(c).poll();
+        if (frame == null) {
+            frame = grow(c);
+        }
+        return frame;
+    }
+
+    static void release(Frame frame) {
+        if (frame.mClass >= 0) {
+            mFree.get(frame.mClass).offer(frame);
+        }
+    }
+
+    /** Cuts a new slab into frames of class c; keeps all of them but one. */
+    private static Frame grow(int c) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB);
+        mSlabs.incrementAndGet();
+        int size = SIZES[c];
+        Frame first = null;
+        for (int offset = 0; offset + size <= SLAB; offset += size) {
+            slab.limit(offset + size).position(offset);
+            Frame frame = new Frame(c, slab.slice(), true);
+            if (first == null) {
+                first = frame;
+            } else if (!mFree.get(c).offer(frame)) {
+                break;
+            }
+        }
+        return first;
+    }
+
+    static int sizeClass(int length) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (length <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static long free() {
+        long free = 0;
+        for (ArrayBlockingQueue<Frame> q : mFree) {
+            free += q.size();
+        }
+        return free;
+    }
+}
@@ -0,0 +1,441 @@
+package server;
+
+import common.MsgType;
+import common.Message;
+import common.HandshakeMessage;
+import common.BroadcastMessage;
+import common.ChatMessage;
+import common.Encoded;
+import common.JoinMessage;
+import common.LeaveMessage;
+import common.ListMessage;
+import common.PresenceMessage;
+import common.RoomMessage;
+import common.HistoryMessage;
+import common.Tagged;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * Handles one request from a session and computes the reply. Shared by
+ * the blocking and the non-blocking server.
+ */
+public class ChatProtocol
+{
+    public static final String GREETING = "Enter your nickname:";
+
+    // most offline messages replayed at login, older ones are skipped
+    static final int REPLAY_MAX = Integer.getInteger("chat.journal.replayMax", 500);
+    // most messages in one history reply
+    static final int HISTORY_MAX = Integer.getInteger("chat.history.maxPage", 200);
+
+    // the refusal is encoded once, being refused costs the flooder nothing extra
+    static final Encoded REJECTED = new Encoded(RateLimiter.REJECTED);
+    static final Frame REJECTED_FRAME = Frame.pinned(RateLimiter.REJECTED);
+
+    static Logger logger = Logger.getInstance();
+
+    // runs what may wait (see mayWait) for the nio loops, and logins once
+    // the cluster decided them; chat.workers threads, default max(4, cores)
+    static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+        Integer.getInteger("chat.workers", Math.max(4, Runtime.getRuntime().availableProcessors())),
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "chat-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    public static Boolean validNickname(String s) {
+        return s.length() > 0 && !Server.mNicknames.containsKey(s) && !Cluster.knows(s);
+    }
+
+    /**
+     * Returns the reply for the sender, or null when nothing should be
+     * sent back (disconnect). Requests over the rate limit are refused
+     * before any work is done. A login the cluster has to decide returns
+     * a CompletableFuture of the reply instead, completed on WORKERS.
+     */
+    public static Object handle(Session session, Message msg) {
+        if (!RateLimiter.admit(session.mLimit, RateLimiter.cost(msg.getType()))) {
+            session.mRejected++;
+            return Server.mPooled ? REJECTED_FRAME : REJECTED;
+        }
+        long start = System.nanoTime();
+        Metrics.mMessages.incrementAndGet(msg.getType().ordinal());
+        Object res = dispatch(session, msg, start);
+        Metrics.mHandle.record(System.nanoTime() - start);
+        return res;
+    }
+
+    /**
+     * Whether handling a request of this type may wait: on the journal's
+     * disk (appends, with chat.journal.fsyncMs=0 until fsynced, the login
+     * replay, history reads, the read offset stored at logout) or on the
+     * cluster (logins).
+     */
+    public static boolean mayWait(MsgType type) {
+        if (type == MsgType.MSG_HANDSHAKE && Cluster.enabled()) {
+            return true;
+        }
+        if (Server.mJournal == null) {
+            return false;
+        }
+        switch (type) {
+            case MSG_HANDSHAKE:
+            case MSG_DISCONNECT:
+            case MSG_CHAT:
+            case MSG_BROADCAST:
+            case MSG_HISTORY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The reply as it goes out: tagged with the request's id when the
+     * client sent one (id 0 means it didn't).
+     */
+    public static Object reply(int id, Object res) {
+        if (id == 0 || res == null) {
+            return res;
+        }
+        if (res == REJECTED || res == REJECTED_FRAME) {
+            res = RateLimiter.REJECTED;
+        }
+        return new Tagged(id, res);
+    }
+
+    private static Object dispatch(Session session, Message msg, long start) {
+        String res = null;
+        switch(msg.getType())
+        {
+            case MSG_HANDSHAKE:
+            {
+                final HandshakeMessage hmsg = (HandshakeMessage) msg;
+                // validNickname is only a cheap pre-check, the claim decides.
+                if (!validNickname(hmsg.name)) {
+                    res = "Invalid name, try again:";
+                    break;
+                }
+                CompletableFuture<Boolean> claim = Server.claimNickname(session, hmsg.name);
+                if (claim.isDone()) {
+                    res = loggedIn(session, hmsg, claim.join());
+                    break;
+                }
+                final Session waiting = session;
+                return claim.thenApply(new Function<Boolean, String>() {
+                    public String apply(Boolean granted) {
+                        return loggedIn(waiting, hmsg, granted);
+                    }
+                });
+            }
+            case MSG_DISCONNECT:
+            {
+                logger.Log(session.mNickname + " got disconnected..");
+                session.close();
+                Server.removeClient(session);
+            }
+            break;
+            case MSG_LIST:
+            {
+                ListMessage lmsg = (ListMessage) msg;
+                logger.Log(session.mNickname + " requested online user list..");
+                res = Presence.page(lmsg.prefix, lmsg.after, lmsg.count);
+            }
+            break;
+            case MSG_PRESENCE:
+            {
+                PresenceMessage pmsg = (PresenceMessage) msg;
+                if (session.mNickname == null) {
+                    res = "Log in first";
+                } else {
+                    if (pmsg.watch) {
+                        Presence.watch(session);
+                    } else {
+                        Presence.unwatch(session);
+                    }
+                    res = msg.stringFormat();
+                }
+            }
+            break;
+            case MSG_CHAT:
+            {
+                ChatMessage cmsg = (ChatMessage) msg;
+                cmsg.mSource = session.mNickname;
+                if (cmsg.mSource == null) {
+                    // nobody to journal it for, or to answer to
+                    res = "Log in first";
+                    break;
+                }
+                if (cmsg.mDestination != null && !Server.mNicknames.containsKey(cmsg.mDestination)) {
+                    // null when no other node has the recipient either
+                    res = Cluster.forward(cmsg);
+                }
+                if (res == null) {
+                    res = deliver(cmsg, start);
+                }
+            }
+            break;
+            case MSG_BROADCAST:
+            {
+                BroadcastMessage bmsg = (BroadcastMessage) msg;
+                bmsg.mSource = session.mNickname;
+                if (bmsg.mSource == null) {
+                    res = "Log in first";
+                    break;
+                }
+                int missed = Cluster.broadcast(bmsg);
+                fanOut(bmsg, start);
+                res = missed == 0 ? "Broadcast sent" : "Broadcast sent here, " + missed + Cluster.NODES_MISSED;
+            }
+            break;
+            case MSG_JOIN:
+            {
+                JoinMessage jmsg = (JoinMessage) msg;
+                if (session.mNickname == null) {
+                    res = "Log in first";
+                } else if (jmsg.room == null || jmsg.room.length() == 0) {
+                    res = "Invalid room";
+                } else {
+                    Rooms.join(session, jmsg.room);
+                    res = msg.stringFormat();
+                }
+            }
+            break;
+            case MSG_LEAVE:
+            {
+                LeaveMessage lmsg = (LeaveMessage) msg;
+                if (lmsg.room != null && Rooms.leave(session, lmsg.room)) {
+                    res = msg.stringFormat();
+                } else {
+                    res = "Not in room " + lmsg.room;
+                }
+            }
+            break;
+            case MSG_ROOM:
+            {
+                RoomMessage rmsg = (RoomMessage) msg;
+                rmsg.mSource = session.mNickname;
+                if (rmsg.mDestination == null || !session.mRooms.contains(rmsg.mDestination)) {
+                    res = "Not in room " + rmsg.mDestination;
+                } else {
+                    int missed = Cluster.room(rmsg);
+                    roomFanOut(rmsg, start);
+                    res = missed == 0 ? "Room message sent" : "Room message sent here, " + missed + Cluster.NODES_MISSED;
+                }
+            }
+            break;
+            case MSG_HISTORY:
+            {
+                HistoryMessage hmsg = (HistoryMessage) msg;
+                if (session.mNickname == null) {
+                    res = "Log in first";
+                } else if (Server.mJournal == null) {
+                    res = "No history is kept on this server";
+                } else if (hmsg.peer == null) {
+                    res = "Invalid recipient";
+                } else {
+                    res = history(session.mNickname, hmsg);
+                }
+            }
+            break;
+            default:
+            {
+                logger.Log("Method not implemented");
+            }
+            break;
+        }
+        return res;
+    }
+
+    /** The reply to a login, once the name was given or refused. */
+    static String loggedIn(Session session, HandshakeMessage hmsg, boolean granted) {
+        if (!granted) {
+            return "Invalid name, try again:";
+        }
+        if (session.mOutbox.isClosed()) {
+            // timed out or dropped while the cluster decided, nobody will log it out
+            lost(session);
+            return "Invalid name, try again:";
+        }
+        HandshakeStage.done(session);
+        if (hmsg.deflate && Compression.allowed() && session.canDeflate()) {
+            // from the reply on; the client set up its side before asking
+            session.mDeflate = true;
+        }
+        logger.Log(session.mNickname + " set name..");
+        return replay(session, hmsg.stringFormat());
+    }
+
+    /**
+     * Hands a chat to its recipient on this node, or journals it when the
+     * recipient is offline. Also used for chats forwarded by other nodes.
+     */
+    static String deliver(ChatMessage cmsg, long start) {
+        long position = -1;
+        Journal journal = Server.mJournal;
+        if (journal != null && cmsg.mDestination != null
+                && (journal.known(cmsg.mDestination) || Server.mNicknames.containsKey(cmsg.mDestination))) {
+            position = record(Journal.CHAT, cmsg);
+        }
+        // looked up after the append, see LiveWindow
+        Session ch = cmsg.mDestination == null ? null : Server.mNicknames.get(cmsg.mDestination);
+        if (ch != null && live(ch, position)) {
+            Object out = encode(cmsg, start);
+            try {
+                ch.send(out);
+                return "Message sent";
+            } catch (Exception e) {
+                // ignore, unable to send
+            } finally {
+                Frame.release(out);
+            }
+        }
+        if (position >= 0) {
+            return "User " + cmsg.mDestination + " is offline, message saved";
+        }
+        return "Invalid recipient";
+    }
+
+    /** Sends a broadcast to every user of this node. */
+    static void fanOut(BroadcastMessage bmsg, long start) {
+        long position = record(Journal.BROADCAST, bmsg);
+        // encoded once, every recipient queues the same frame
+        Object out = encode(bmsg, start);
+        Session[] recipients = Server.mClientsList.snapshot();
+        Metrics.mFanout.record(recipients.length);
+        for (Session ch : recipients) {
+            if (!live(ch, position)) {
+                continue;
+            }
+            try {
+                ch.send(out);
+            } catch (Exception e) {
+                // ignore, unable to send
+            }
+        }
+        Frame.release(out);
+    }
+
+    /** Sends a room message to the members of the room on this node. */
+    static void roomFanOut(RoomMessage rmsg, long start) {
+        Object out = encode(rmsg, start);
+        Session[] members = Rooms.members(rmsg.mDestination);
+        Metrics.mFanout.record(members.length);
+        for (Session ch : members) {
+            try {
+                ch.send(out);
+            } catch (Exception e) {
+                // ignore, unable to send
+            }
+        }
+        Frame.release(out);
+    }
+
+    /**
+     * The frame for the recipients, stamped with when the message came in:
+     * a pooled Frame on the nio server, an Encoded otherwise. The caller
+     * owns a reference and releases it with Frame.release once sent.
+     */
+    static Object encode(Message msg, long start) {
+        long t = System.nanoTime();
+        Object out = Server.mPooled ? Frame.encode(msg.stringFormat(), start) : new Encoded(msg.stringFormat(), start);
+        Metrics.mEncode.record(System.nanoTime() - t);
+        return out;
+    }
+
+    /** Journals a chat or broadcast; -1 when there is no journal or the write failed. */
+    static long record(byte kind, ChatMessage msg) {
+        Journal journal = Server.mJournal;
+        if (journal == null) {
+            return -1;
+        }
+        try {
+            // server time, so history is ordered the way the messages came in
+            return journal.append(kind, System.currentTimeMillis(), msg.mSource,
+                kind == Journal.BROADCAST ? null : msg.mDestination, msg.mBody);
+        } catch (IOException e) {
+            logger.warn("journal append failed: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /** One page of the user's conversation with hmsg.peer (or of the broadcasts). */
+    static String history(String user, HistoryMessage hmsg) {
+        String conversation = HistoryMessage.BROADCASTS.compareTo(hmsg.peer) == 0
+            ? Journal.conversation(Journal.BROADCAST, null, null)
+            : Journal.conversation(Journal.CHAT, user, hmsg.peer);
+        StringBuilder reply = new StringBuilder(hmsg.stringFormat());
+        for (Journal.Record r : Server.mJournal.history(conversation, hmsg.since, hmsg.until,
+                Math.min(hmsg.count, HISTORY_MAX))) {
+            reply.append('\n').append(HistoryMessage.line(r.time, r.source, r.destination, r.body));
+        }
+        if (reply.indexOf("\n") < 0) {
+            reply.append(" no messages");
+        }
+        return reply.toString();
+    }
+
+    /** Whether the message at position goes to ch now rather than at its next login. */
+    static boolean live(Session ch, long position) {
+        return position < 0 || ch.mLive.covers(position);
+    }
+
+    /**
+     * Starts live delivery for a session that just logged in and sends it
+     * what it missed while offline. The greeting has to go out first (the
+     * client waits for it), so with a backlog it is sent here and the
+     * returned reply closes the replay.
+     */
+    static String replay(Session session, String greeting) {
+        Journal journal = Server.mJournal;
+        if (journal == null) {
+            return greeting;
+        }
+        String name = session.mNickname;
+        long mark = session.mLive.open(journal);
+        Long from = journal.offset(name);
+        if (from == null && session.mClaimMark >= 0) {
+            // first login: what came in since the claim was neither live nor stored for later
+            from = session.mClaimMark;
+        }
+        try {
+            journal.markRead(name, mark);
+            if (from == null) {
+                return greeting;
+            }
+            ArrayDeque<ChatMessage> backlog = new ArrayDeque<ChatMessage>();
+            int found = journal.backlog(name, from, mark, backlog, REPLAY_MAX);
+            if (found == 0) {
+                return greeting;
+            }
+            session.send(greeting);
+            if (found > backlog.size()) {
+                session.send((found - backlog.size()) + " older offline messages skipped");
+            }
+            for (ChatMessage m : backlog) {
+                session.send(m.stringFormat());
+            }
+            return "Delivered " + backlog.size() + " offline messages";
+        } catch (IOException e) {
+            logger.warn("journal replay for " + name + " failed: " + e.getMessage());
+            return greeting;
+        }
+    }
+
+    /** Connection dropped without a disconnect message. */
+    public static void lost(Session session) {
+        if (Server.removeClient(session)) {
+            logger.Log(session.mNickname + " got disconnected..");
+        }
+    }
+}
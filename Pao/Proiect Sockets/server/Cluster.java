@@ -0,0 +1,552 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+import common.BroadcastMessage;
+import common.ChatMessage;
+import common.RoomMessage;
+
+/**
+ * Runs several socket servers as one chat. Every node lists the link
+ * address of all nodes in -Dchat.cluster.nodes (host:port,host:port,..,
+ * the same order everywhere) and its own index in -Dchat.cluster.node;
+ * without them the server runs alone and everything here is a no-op.
+ *
+ * Each pair of nodes keeps one link, dialed by the higher index and
+ * redialed when it drops. Over the links:
+ *   - presence: a node announces its users logging in and out, the
+ *     others cache them in mPresence (name -> node). The cache routes
+ *     chats and feeds Presence, so ls and presence watchers are served
+ *     without asking any node.
+ *   - nicknames: a name's home node is picked by its hash. Logging in
+ *     asks the home node (one round trip, at most chat.cluster.claimMs)
+ *     and it grants the name only when no other node holds it. Nobody
+ *     waits for the answer; the login reply goes out when it comes.
+ *   - messages: a chat to a remote user goes to that user's node, a
+ *     broadcast or room message goes once to every node, which fans it
+ *     out to its own users. A link queue that is full (the node is not
+ *     keeping up) refuses the frame, and the sender is told.
+ * When a link goes down the users of that node are dropped from the
+ * cache and from the names held here; names whose home node is down
+ * can't be claimed until it comes back.
+ *
+ * Nodes sharing a working directory get their own journal, log file and
+ * metrics port by default, see NodeDefaults.
+ */
+public class Cluster
+{
+    // link frames: int length, op, long id, then the op's strings
+    static final byte HELLO = 1;
+    static final byte CLAIM = 2;
+    static final byte GRANT = 3;
+    static final byte DENY = 4;
+    static final byte ONLINE = 5;
+    static final byte OFFLINE = 6;
+    static final byte CHAT = 7;
+    static final byte BROADCAST = 8;
+    static final byte ROOM = 9;
+
+    static final long CLAIM_MS = Long.getLong("chat.cluster.claimMs", 2000);
+    static final long REDIAL_MS = Long.getLong("chat.cluster.redialMs", 1000);
+    // frames waiting for a link writer; past this they are refused
+    static final int LINK_QUEUE = Integer.getInteger("chat.cluster.linkQueue", 65536);
+    static final String LINK_BUSY = "Cluster link busy, message not sent";
+    static final String NODES_MISSED = " cluster node(s) busy, not sent there";
+    static final byte[] CLOSED = new byte[0];
+
+    static InetSocketAddress[] mNodes = nodes(System.getProperty("chat.cluster.nodes"));
+    static int mSelf = Integer.getInteger("chat.cluster.node", 0);
+    static AtomicReferenceArray<Link> mLinks = new AtomicReferenceArray<Link>(mNodes == null ? 0 : mNodes.length);
+
+    // users of the other nodes, name -> node
+    public static ConcurrentHashMap<String, Integer> mPresence = new ConcurrentHashMap<String, Integer>();
+    // names this node is home for, name -> node holding it
+    static ConcurrentHashMap<String, Integer> mOwners = new ConcurrentHashMap<String, Integer>();
+    static ConcurrentHashMap<Long, CompletableFuture<Boolean>> mClaims = new ConcurrentHashMap<Long, CompletableFuture<Boolean>>();
+    static AtomicLong mNextClaim = new AtomicLong();
+
+    public static AtomicLong mForwarded = new AtomicLong();
+    public static AtomicLong mReceived = new AtomicLong();
+    public static AtomicLong mDropped = new AtomicLong();
+
+    static Logger logger = Logger.getInstance();
+
+    static InetSocketAddress[] nodes(String list) {
+        if (list == null || list.length() == 0) {
+            return null;
+        }
+        String[] parts = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int colon = part.lastIndexOf(':');
+            nodes[i] = InetSocketAddress.createUnresolved(part.substring(0, colon),
+                Integer.parseInt(part.substring(colon + 1)));
+        }
+        return nodes;
+    }
+
+    public static boolean enabled() {
+        return mNodes != null;
+    }
+
+    /** Listens for the lower nodes and dials the higher ones. */
+    public static void start() throws IOException {
+        if (!enabled()) {
+            return;
+        }
+        final ServerSocket listener = new ServerSocket(mNodes[mSelf].getPort());
+        daemon("cluster-accept", new Runnable() {
+            public void run() {
+                acceptLoop(listener);
+            }
+        });
+        for (int i = 0; i < mSelf; i++) {
+            final int node = i;
+            daemon("cluster-dial-" + node, new Runnable() {
+                public void run() {
+                    dialLoop(node);
+                }
+            });
+        }
+        logger.Log("cluster node " + mSelf + " of " + mNodes.length + ", links on " + mNodes[mSelf].getPort());
+    }
+
+    static void acceptLoop(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                // the hello is read here, don't let a silent peer hold the accept loop
+                socket.setSoTimeout((int) CLAIM_MS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                in.readInt();
+                long node = in.readByte() == HELLO ? in.readLong() : -1;
+                if (node < 0 || node >= mNodes.length || node == mSelf) {
+                    socket.close();
+                    continue;
+                }
+                socket.setSoTimeout(0);
+                attach(new Link((int) node, socket, in));
+            } catch (IOException e) {
+                logger.warn("cluster: accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    static void dialLoop(int node) {
+        while (true) {
+            Link link = mLinks.get(node);
+            if (link == null || link.mClosed) {
+                try {
+                    Socket socket = new Socket(mNodes[node].getHostString(), mNodes[node].getPort());
+                    socket.setTcpNoDelay(true);
+                    link = new Link(node, socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                    link.send(frame(HELLO, mSelf));
+                    attach(link);
+                } catch (IOException e) {
+                    // node not up yet, try again later
+                }
+            }
+            try {
+                Thread.sleep(REDIAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts a fresh link in place and tells the other node who is logged
+     * in here. Announcements hold the same lock, so an OFFLINE can't be
+     * overtaken by a stale roster entry.
+     */
+    static synchronized void attach(Link link) {
+        Link old = mLinks.get(link.mNode);
+        if (old != null) {
+            old.close();
+        }
+        mLinks.set(link.mNode, link);
+        link.start();
+        for (String name : Server.mNicknames.keySet()) {
+            link.send(frame(ONLINE, 0, name));
+        }
+        logger.Log("cluster: link to node " + link.mNode + " up");
+    }
+
+    static synchronized void detach(Link link) {
+        if (!mLinks.compareAndSet(link.mNode, link, null)) {
+            return;
+        }
+        for (Map.Entry<String, Integer> e : mPresence.entrySet()) {
+            if (e.getValue() == link.mNode && mPresence.remove(e.getKey(), e.getValue())) {
+                Presence.offline(e.getKey());
+            }
+        }
+        forget(mOwners, link.mNode);
+        logger.warn("cluster: link to node " + link.mNode + " down");
+    }
+
+    static void forget(ConcurrentHashMap<String, Integer> map, int node) {
+        for (Map.Entry<String, Integer> e : map.entrySet()) {
+            if (e.getValue() == node) {
+                map.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    static synchronized void announce(byte op, String name) {
+        byte[] out = frame(op, 0, name);
+        for (int i = 0; i < mLinks.length(); i++) {
+            Link link = mLinks.get(i);
+            if (link != null) {
+                link.send(out);
+            }
+        }
+    }
+
+    static int home(String name) {
+        return Math.floorMod(name.hashCode(), mNodes.length);
+    }
+
+    /** Whether name is logged in on some other node, as far as we know. */
+    public static boolean knows(String name) {
+        return mPresence.containsKey(name);
+    }
+
+    /**
+     * Asks the name's home node for it; true when this node may give it
+     * to a local session. Done right away unless the home node is another
+     * one; then it completes on that link's reader thread, or with false
+     * after chat.cluster.claimMs.
+     */
+    public static CompletableFuture<Boolean> claim(String name) {
+        if (!enabled()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        int home = home(name);
+        if (home == mSelf) {
+            Integer holder = mOwners.putIfAbsent(name, mSelf);
+            return CompletableFuture.completedFuture(holder == null || holder == mSelf);
+        }
+        Link link = mLinks.get(home);
+        if (link == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final long id = mNextClaim.incrementAndGet();
+        CompletableFuture<Boolean> answer = new CompletableFuture<Boolean>();
+        mClaims.put(id, answer);
+        answer.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean granted, Throwable error) {
+                mClaims.remove(id);
+            }
+        });
+        if (!link.send(frame(CLAIM, id, name))) {
+            answer.complete(false);
+        }
+        return answer.completeOnTimeout(false, CLAIM_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** name was given to a local session. */
+    public static void online(String name) {
+        if (enabled()) {
+            announce(ONLINE, name);
+        }
+    }
+
+    /**
+     * name is no longer held here. Also sent after a refused or timed out
+     * claim, so a late grant doesn't keep the name at its home node.
+     */
+    public static void offline(String name) {
+        if (!enabled()) {
+            return;
+        }
+        if (home(name) == mSelf) {
+            mOwners.remove(name, mSelf);
+        }
+        announce(OFFLINE, name);
+    }
+
+    /**
+     * Sends a chat to the node of its recipient and returns the reply for
+     * the sender; null when nobody else has that user.
+     */
+    public static String forward(ChatMessage msg) {
+        Integer node = mPresence.get(msg.mDestination);
+        Link link = node == null ? null : mLinks.get(node);
+        if (link == null) {
+            return null;
+        }
+        if (!link.send(frame(CHAT, 0, msg.mSource, msg.mDestination, msg.mBody))) {
+            return LINK_BUSY;
+        }
+        mForwarded.incrementAndGet();
+        return "Message sent";
+    }
+
+    /**
+     * One copy to every other node, each fans it out to its own users.
+     * Returns how many nodes it could not be sent to.
+     */
+    public static int broadcast(BroadcastMessage msg) {
+        return toAll(frame(BROADCAST, 0, msg.mSource, msg.mBody));
+    }
+
+    public static int room(RoomMessage msg) {
+        return toAll(frame(ROOM, 0, msg.mDestination, msg.mSource, msg.mBody));
+    }
+
+    static int toAll(byte[] out) {
+        int missed = 0;
+        for (int i = 0; i < mLinks.length(); i++) {
+            Link link = mLinks.get(i);
+            if (link == null) {
+                continue;
+            }
+            if (link.send(out)) {
+                mForwarded.incrementAndGet();
+            } else {
+                missed++;
+            }
+        }
+        return missed;
+    }
+
+    public static int linksUp() {
+        int up = 0;
+        for (int i = 0; i < mLinks.length(); i++) {
+            if (mLinks.get(i) != null) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /** Runs on the link's reader thread. */
+    static void receive(Link link, DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        long id = in.readLong();
+        int from = link.mNode;
+        switch (op) {
+            case CLAIM:
+            {
+                String name = readString(in);
+                Integer holder = mOwners.putIfAbsent(name, from);
+                boolean granted = holder == null || holder == from;
+                link.send(frame(granted ? GRANT : DENY, id));
+            }
+            break;
+            case GRANT:
+            case DENY:
+            {
+                CompletableFuture<Boolean> answer = mClaims.get(id);
+                if (answer != null) {
+                    answer.complete(op == GRANT);
+                }
+            }
+            break;
+            case ONLINE:
+            {
+                String name = readString(in);
+                if (mPresence.put(name, from) == null) {
+                    Presence.online(name);
+                }
+                if (home(name) == mSelf) {
+                    // a restarted home node learns its names back from the roster
+                    mOwners.putIfAbsent(name, from);
+                }
+            }
+            break;
+            case OFFLINE:
+            {
+                String name = readString(in);
+                if (mPresence.remove(name, from)) {
+                    Presence.offline(name);
+                }
+                mOwners.remove(name, from);
+            }
+            break;
+            case CHAT:
+            {
+                ChatMessage msg = new ChatMessage();
+                msg.mSource = readString(in);
+                msg.mDestination = readString(in);
+                msg.mBody = readString(in);
+                mReceived.incrementAndGet();
+                ChatProtocol.deliver(msg, System.nanoTime());
+            }
+            break;
+            case BROADCAST:
+            {
+                BroadcastMessage msg = new BroadcastMessage();
+                msg.mSource = readString(in);
+                msg.mBody = readString(in);
+                mReceived.incrementAndGet();
+                ChatProtocol.fanOut(msg, System.nanoTime());
+            }
+            break;
+            case ROOM:
+            {
+                RoomMessage msg = new RoomMessage();
+                msg.mDestination = readString(in);
+                msg.mSource = readString(in);
+                msg.mBody = readString(in);
+                mReceived.incrementAndGet();
+                ChatProtocol.roomFanOut(msg, System.nanoTime());
+            }
+            break;
+            default:
+                throw new IOException("unknown link frame " + op);
+        }
+    }
+
+    static byte[] frame(byte op, long id, String... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(op);
+            out.writeLong(id);
+            for (String field : fields) {
+                if (field == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] utf = field.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf.length);
+                    out.write(utf);
+                }
+            }
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf = new byte[length];
+        in.readFully(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    static Thread daemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Connection to one other node: a reader thread handling its frames
+     * and a writer thread draining the queue, flushing once the queue is
+     * empty so a burst goes out in few packets.
+     */
+    static class Link
+    {
+        final int mNode;
+        final Socket mSocket;
+        final DataInputStream mIn;
+        final LinkedBlockingQueue<byte[]> mOut = new LinkedBlockingQueue<byte[]>(LINK_QUEUE);
+        volatile boolean mClosed = false;
+
+        Link(int node, Socket socket, DataInputStream in) {
+            mNode = node;
+            mSocket = socket;
+            mIn = in;
+        }
+
+        void start() {
+            daemon("cluster-read-" + mNode, new Runnable() {
+                public void run() {
+                    readLoop();
+                }
+            });
+            daemon("cluster-write-" + mNode, new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            });
+        }
+
+        /** Queues a frame for the writer; false (and counted) when the queue is full. */
+        boolean send(byte[] frame) {
+            if (!mOut.offer(frame)) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    mIn.readInt();
+                    receive(this, mIn);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void writeLoop() {
+            try {
+                BufferedOutputStream out = new BufferedOutputStream(mSocket.getOutputStream(), 1 << 16);
+                while (true) {
+                    byte[] frame = mOut.take();
+                    while (frame != null && frame != CLOSED) {
+                        out.write(frame);
+                        frame = mOut.poll();
+                    }
+                    out.flush();
+                    if (frame == CLOSED) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            mOut.clear();
+            mOut.offer(CLOSED);
+            detach(this);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whether sessions that asked for DEFLATED frames (see common.Deflate)
+ * get them. Every recipient of a broadcast deflates its own copy on its
+ * own stream, so compression trades server CPU for bandwidth; when the
+ * CPU is short the server sends plain frames instead, which the clients
+ * read just as well.
+ *
+ * Settings (system properties):
+ *   chat.compress          off (never), on (always) or auto (default):
+ *                          on unless the process is busy
+ *   chat.compress.cpuHigh  process CPU load (0..1 of all cores) that turns it off (default 0.85)
+ *   chat.compress.cpuLow   load under which it comes back on (default 0.60)
+ *   chat.compress.level    deflate level, 1..9 (default 6)
+ */
+public class Compression
+{
+    static final String MODE = System.getProperty("chat.compress", "auto");
+    static final double CPU_HIGH = Double.parseDouble(System.getProperty("chat.compress.cpuHigh", "0.85"));
+    static final double CPU_LOW = Double.parseDouble(System.getProperty("chat.compress.cpuLow", "0.60"));
+    static final long CHECK_MS = 1000;
+
+    static volatile boolean mActive = MODE.compareTo("off") != 0;
+
+    // payload bytes before and after deflating, frames sent plain because it was off
+    public static AtomicLong mRawBytes = new AtomicLong();
+    public static AtomicLong mDeflatedBytes = new AtomicLong();
+    public static AtomicLong mPlainFrames = new AtomicLong();
+    public static Histogram mDeflate = new Histogram();
+
+    private static ScheduledExecutorService mGovernor;
+
+    /** Whether a session may be given DEFLATED frames at all. */
+    public static boolean allowed() {
+        return MODE.compareTo("off") != 0;
+    }
+
+    /** Whether frames are deflated right now. */
+    public static boolean active() {
+        return mActive;
+    }
+
+    /** Starts watching the CPU load in auto mode. */
+    public static synchronized void start() {
+        if (MODE.compareTo("auto") != 0 || mGovernor != null) {
+            return;
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            Logger.getInstance().warn("compression: no process CPU load on this JVM, staying on");
+            return;
+        }
+        final com.sun.management.OperatingSystemMXBean cpu = (com.sun.management.OperatingSystemMXBean) os;
+        mGovernor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "compress-governor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mGovernor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                check(cpu.getProcessCpuLoad());
+            }
+        }, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    static void check(double load) {
+        if (load < 0) {
+            return;
+        }
+        if (mActive && load > CPU_HIGH) {
+            mActive = false;
+            Logger.getInstance().warn("compression off, process cpu at " + Math.round(load * 100) + "%");
+        } else if (!mActive && load < CPU_LOW) {
+            mActive = true;
+            Logger.getInstance().warn("compression back on, process cpu at " + Math.round(load * 100) + "%");
+        }
+    }
+
+    /** Counts a frame written by a session that asked for compression. */
+    static void record(int raw, int deflated, long nanos) {
+        mRawBytes.addAndGet(raw);
+        mDeflatedBytes.addAndGet(deflated);
+        mDeflate.record(nanos);
+    }
+}
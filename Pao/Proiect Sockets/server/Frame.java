@@ -0,0 +1,132 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.BinaryCodec;
+import common.Encoded;
+import common.Tagged;
+
+/**
+ * One outbound binary frame in a pooled direct buffer, shared by every
+ * session it is queued on. Each holder owns a reference: the creator
+ * from encode(), every outbox from Session.send, and the buffer goes
+ * back to the BufferPool with the last release(). The bytes are written
+ * once, before the frame is handed to anybody, and only read after that;
+ * writers read them through views of their own (see EventLoop.view).
+ */
+final class Frame
+{
+    // mClass of frames that are not from the pool
+    static final int UNPOOLED = -1;
+    // mClass of a heap frame made for one session only (-Dchat.pool=off)
+    static final int PRIVATE = -2;
+
+    final int mClass;
+    final ByteBuffer mBuffer;
+    // sent again and again (pooled or pinned): the loops keep views of it
+    final boolean mReused;
+    // those views, one per EventLoop, made on first use; a dropped frame takes them along
+    private volatile ByteBuffer[] mViews;
+    int mLength;
+    // System.nanoTime() when the message was accepted, 0 if not timed
+    long mCreated;
+    private AtomicInteger mRefs = new AtomicInteger();
+
+    Frame(int sizeClass, ByteBuffer buffer, boolean reused) {
+        mClass = sizeClass;
+        mBuffer = buffer;
+        mReused = reused;
+    }
+
+    /** The per loop views of a reused frame, room for loops; each slot belongs to one loop. */
+    ByteBuffer[] views(int loops) {
+        ByteBuffer[] views = mViews;
+        if (views == null) {
+            synchronized (this) {
+                if (mViews == null) {
+                    mViews = new ByteBuffer[loops];
+                }
+                views = mViews;
+            }
+        }
+        return views;
+    }
+
+    /** Frames value (a reply string, tagged or not, or an Encoded) into a pooled buffer. */
+    static Frame encode(Object value, long created) {
+        int id = 0;
+        if (value instanceof Tagged && ((Tagged) value).mValue instanceof String) {
+            id = ((Tagged) value).mId;
+            value = ((Tagged) value).mValue;
+        }
+        Frame frame;
+        if (value instanceof String) {
+            String text = (String) value;
+            frame = BufferPool.acquire(BinaryCodec.replyFrameLength(id, text));
+            frame.mBuffer.clear();
+            BinaryCodec.putReply(frame.mBuffer, id, text);
+        } else {
+            byte[] bytes = BinaryCodec.frame(value);
+            frame = BufferPool.acquire(bytes.length);
+            frame.mBuffer.clear();
+            frame.mBuffer.put(bytes);
+            if (value instanceof Encoded) {
+                created = ((Encoded) value).mCreated;
+            }
+        }
+        frame.mLength = frame.mBuffer.position();
+        frame.mCreated = created;
+        frame.mRefs.set(1);
+        return frame;
+    }
+
+    /** A pooled frame holding a copy of the frame in bytes, position to limit. */
+    static Frame copy(ByteBuffer bytes, long created) {
+        Frame frame = BufferPool.acquire(bytes.remaining());
+        frame.mBuffer.clear();
+        frame.mBuffer.put(bytes);
+        frame.mLength = frame.mBuffer.position();
+        frame.mCreated = created;
+        frame.mRefs.set(1);
+        return frame;
+    }
+
+    /** The old way: the frame bytes wrapped for one session's writer. */
+    static Frame wrap(byte[] bytes, long created) {
+        Frame frame = new Frame(PRIVATE, ByteBuffer.wrap(bytes), false);
+        frame.mLength = bytes.length;
+        frame.mCreated = created;
+        frame.mRefs.set(1);
+        return frame;
+    }
+
+    /** A frame that is never released, for replies sent over and over. */
+    static Frame pinned(String text) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BinaryCodec.replyFrameLength(0, text));
+        BinaryCodec.putReply(buffer, 0, text);
+        Frame frame = new Frame(UNPOOLED, buffer, true);
+        frame.mLength = buffer.position();
+        frame.mRefs.set(1);
+        return frame;
+    }
+
+    void retain() {
+        mRefs.incrementAndGet();
+    }
+
+    void release() {
+        int left = mRefs.decrementAndGet();
+        assert left >= 0 : "frame released too often";
+        if (left == 0) {
+            BufferPool.release(this);
+        }
+    }
+
+    /** Drops the reference held through item, if it is a frame. */
+    static void release(Object item) {
+        if (item instanceof Frame) {
+            ((Frame) item).release();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of connections that have not picked a nickname yet. The
+ * accept loop only asks admit(), which refuses new sockets once
+ * maxPending connections are waiting, and never reads from them. Every
+ * admitted session gets a deadline: if it hasn't logged in by then it is
+ * closed and counted as timed out.
+ *
+ * Settings: -Dchat.handshake.timeoutMs (default 10000),
+ * -Dchat.handshake.maxPending (default 1024).
+ */
+public class HandshakeStage
+{
+    public static final long TIMEOUT_MS = Long.getLong("chat.handshake.timeoutMs", 10000);
+    public static final int MAX_PENDING = Integer.getInteger("chat.handshake.maxPending", 1024);
+
+    public static AtomicLong mAccepted = new AtomicLong();
+    public static AtomicLong mRejected = new AtomicLong();
+    public static AtomicLong mTimedOut = new AtomicLong();
+    static AtomicLong mPending = new AtomicLong();
+
+    static ScheduledThreadPoolExecutor mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "handshake-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    static {
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Called by the accept loop; false means close the socket right away. */
+    public static boolean admit() {
+        if (mPending.incrementAndGet() > MAX_PENDING) {
+            mPending.decrementAndGet();
+            mRejected.incrementAndGet();
+            return false;
+        }
+        mAccepted.incrementAndGet();
+        return true;
+    }
+
+    /** Starts the deadline of an admitted session. */
+    public static void start(final Session session) {
+        session.mAcceptedAt = System.nanoTime();
+        session.mAwaitingHandshake.set(true);
+        session.mHandshakeDeadline = mTimer.schedule(new Runnable() {
+            public void run() {
+                expire(session);
+            }
+        }, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** The session logged in. */
+    public static void done(Session session) {
+        if (finish(session)) {
+            Metrics.mHandshake.record(System.nanoTime() - session.mAcceptedAt);
+        }
+    }
+
+    /** The session went away before logging in. */
+    public static void abandon(Session session) {
+        finish(session);
+    }
+
+    /** Deadline passed (timer or read timeout) without a login. */
+    public static void expire(Session session) {
+        if (finish(session)) {
+            mTimedOut.incrementAndGet();
+            Logger.getInstance().Log("handshake from " + session.mIPAddress + " timed out..");
+            session.close();
+        }
+    }
+
+    public static long pending() {
+        return mPending.get();
+    }
+
+    private static boolean finish(Session session) {
+        if (!session.mAwaitingHandshake.compareAndSet(true, false)) {
+            return false;
+        }
+        mPending.decrementAndGet();
+        if (session.mHandshakeDeadline != null) {
+            session.mHandshakeDeadline.cancel(false);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,844 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import common.ChatMessage;
+import common.BroadcastMessage;
+
+/**
+ * Append-only log of every chat and broadcast, so a message for a user
+ * who is offline is kept and handed over at their next login.
+ *
+ * The log is a run of segment files, each named after the position of
+ * its first byte; a position is a byte offset into the whole log. A
+ * record is int length, int crc32 of the payload, then the payload:
+ * kind byte, long time, long prev, long skip, and source, destination,
+ * body as int length + UTF-8 (-1 for null). OFFSET records use the same
+ * layout, time is where the user (source) stopped reading.
+ *
+ * History is indexed per conversation (a pair of users, or all
+ * broadcasts) inside the log itself: prev points at the conversation's
+ * previous record and skip further back, at distances of 1, 3, 7, 15 ..
+ * records (see Chain), so every record of a conversation is O(log n)
+ * hops from its newest one, which is kept in memory. A query walks back
+ * from there, over skips while they land after the time asked for, and
+ * reads only the records it needs however long the log or the
+ * conversation is: a page from the far end of a conversation of
+ * millions of messages takes a few dozen reads.
+ *
+ * Appends are one FileChannel write under a lock; fsync is batched:
+ *   chat.journal.fsyncMs  0   every append waits until it is on disk, but
+ *                             appends waiting together share one fsync
+ *                         >0  a background thread syncs that often (default 10)
+ *                         <0  never sync, leave it to the OS
+ * A crashed process loses nothing it appended; a power cut loses at most
+ * the last fsyncMs worth of messages.
+ *
+ * When a segment is full the user offsets and conversation heads are
+ * checkpointed to a side file before the next segment starts, so recovery reads the checkpoint
+ * plus at most one segment, and cuts off a torn record at the tail.
+ *
+ * Other settings: chat.journal.dir (default chat-journal, chat-journal-<n>
+ * on socket cluster node n; "off" turns the journal off),
+ * chat.journal.segmentMB (64), chat.journal.keepSegments (older segments
+ * are deleted, default 8, 0 keeps everything). A server locks its
+ * directory; a second one started on it exits.
+ *
+ * Retention: with the defaults only the newest 8 x 64 MB = 512 MB of log
+ * is kept, around five million short messages. Older history, and
+ * offline messages for users away that long, are deleted with their
+ * segment; history simply ends there. Raise keepSegments or set it to 0
+ * to keep more.
+ */
+public class Journal
+{
+    public static final byte CHAT = 1;
+    public static final byte BROADCAST = 2;
+    public static final byte OFFSET = 3;
+
+    private static final int HEADER = 8;
+    private static final int MAX_RECORD = 16 << 20;
+    private static final String CHECKPOINT = "offsets.ckpt";
+    private static final String LOCK = "lock";
+    // first long of a checkpoint with Chain spines; older ones start with the position
+    private static final long SPINES = -2;
+
+    public static class Record
+    {
+        public long position;
+        public byte kind;
+        public long time;
+        public long prev;
+        public long skip;
+        public String source;
+        public String destination;
+        public String body;
+    }
+
+    /** Gets the records read by scan(). */
+    public interface Visitor {
+        void record(Record r);
+    }
+
+    /**
+     * Where a conversation ends, and where its next record skips to;
+     * written under the write lock. Skips are Myers' jump pointers: when
+     * the newest record's skip and the one after it jump equally far, the
+     * next record skips to where they end up, otherwise to the newest
+     * record. Jumps come out 1, 3, 7, 15 .. records long and any record
+     * is reached in O(log n) of them. The spine is the records the newest
+     * one reaches by skips alone, position and depth (number in the
+     * conversation) each, newest last.
+     */
+    static class Chain
+    {
+        volatile long mHead = -1;
+        long mCount;
+        long[] mSpine;
+        int mLength;
+
+        /** The skip of the record appended next, -1 for the first. */
+        long skip() {
+            if (alike()) {
+                return mSpine[2 * (mLength - 3)];
+            }
+            return mLength > 0 ? mSpine[2 * (mLength - 1)] : -1;
+        }
+
+        void add(long position) {
+            if (alike()) {
+                // the new record skips over the last two
+                mLength -= 2;
+            }
+            push(position, mCount);
+            mCount++;
+            mHead = position;
+        }
+
+        private boolean alike() {
+            if (mLength < 3) {
+                return false;
+            }
+            int top = 2 * (mLength - 1);
+            return mSpine[top + 1] - mSpine[top - 1] == mSpine[top - 1] - mSpine[top - 3];
+        }
+
+        private void push(long position, long depth) {
+            if (mSpine == null) {
+                mSpine = new long[4];
+            } else if (2 * mLength == mSpine.length) {
+                mSpine = Arrays.copyOf(mSpine, 2 * mSpine.length);
+            }
+            mSpine[2 * mLength] = position;
+            mSpine[2 * mLength + 1] = depth;
+            mLength++;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(mHead);
+            out.writeLong(mCount);
+            out.writeInt(mLength);
+            for (int i = 0; i < 2 * mLength; i++) {
+                out.writeLong(mSpine[i]);
+            }
+        }
+
+        static Chain read(DataInputStream in, boolean spines) throws IOException {
+            Chain c = new Chain();
+            c.mHead = in.readLong();
+            if (!spines) {
+                // anchor chain of the old format: the old records keep their
+                // skips, new ones start a spine at the head
+                in.readLong();
+                c.mCount = in.readLong();
+                if (c.mHead >= 0) {
+                    c.push(c.mHead, c.mCount - 1);
+                }
+                return c;
+            }
+            c.mCount = in.readLong();
+            int length = in.readInt();
+            for (int i = 0; i < length; i++) {
+                long position = in.readLong();
+                c.push(position, in.readLong());
+            }
+            return c;
+        }
+    }
+
+    File mDir;
+    long mSegmentBytes;
+    int mKeepSegments;
+    long mFsyncMs;
+    // segment base position -> file
+    ConcurrentSkipListMap<Long, File> mSegments = new ConcurrentSkipListMap<Long, File>();
+    // user -> position up to which they got everything
+    ConcurrentHashMap<String, Long> mOffsets = new ConcurrentHashMap<String, Long>();
+    // conversation -> its newest record and skip spine
+    ConcurrentHashMap<String, Chain> mChains = new ConcurrentHashMap<String, Chain>();
+    // read-only channels for history lookups, one per segment
+    ConcurrentHashMap<Long, FileChannel> mReaders = new ConcurrentHashMap<Long, FileChannel>();
+    // a lock, not a monitor, so virtual threads don't get pinned on the write
+    ReentrantLock mWriteLock = new ReentrantLock();
+    ReentrantLock mSyncLock = new ReentrantLock();
+    volatile FileChannel mChannel;
+    volatile long mBase;
+    volatile long mEnd;
+    volatile long mDurable;
+    // the directory lock of fromProperties, referenced so its channel stays open
+    FileLock mLock;
+
+    /**
+     * The journal configured by the system properties, in defaultDir
+     * unless chat.journal.dir says otherwise; null when it is off. Exits
+     * when another server holds the directory.
+     */
+    public static Journal fromProperties(String defaultDir) {
+        String dir = System.getProperty("chat.journal.dir", defaultDir);
+        if (dir.compareTo("off") == 0) {
+            return null;
+        }
+        FileLock lock;
+        try {
+            lock = lock(new File(dir));
+        } catch (IOException e) {
+            Logger.getInstance().warn("journal off, can't open " + dir + ": " + e.getMessage());
+            return null;
+        }
+        if (lock == null) {
+            // two writers would interleave their appends in the same segment
+            String msg = "journal " + dir + " is used by another server, not starting";
+            Logger.getInstance().warn(msg);
+            System.out.println(msg);
+            System.exit(1);
+        }
+        try {
+            Journal journal = new Journal(new File(dir),
+                Long.getLong("chat.journal.segmentMB", 64) * 1024 * 1024,
+                Integer.getInteger("chat.journal.keepSegments", 8),
+                Long.getLong("chat.journal.fsyncMs", 10));
+            journal.mLock = lock;
+            return journal;
+        } catch (IOException e) {
+            Logger.getInstance().warn("journal off, can't open " + dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Locks dir for this process, held until it exits. Null when
+     * somebody else holds it.
+     */
+    static FileLock lock(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("not a directory");
+        }
+        FileChannel channel = FileChannel.open(new File(dir, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // held by this process already
+        }
+        channel.close();
+        return null;
+    }
+
+    public Journal(File dir, long segmentBytes, int keepSegments, long fsyncMs) throws IOException {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mKeepSegments = keepSegments;
+        mFsyncMs = fsyncMs;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("not a directory");
+        }
+        for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(".seg")) {
+                mSegments.put(Long.parseLong(name.substring(0, name.length() - 4)), f);
+            }
+        }
+        long through = readCheckpoint();
+        if (mSegments.isEmpty()) {
+            mSegments.put(through, new File(dir, segmentName(through)));
+        }
+        recover(through);
+
+        Map.Entry<Long, File> active = mSegments.lastEntry();
+        mBase = active.getKey();
+        mChannel = FileChannel.open(active.getValue().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        mChannel.position(mChannel.size());
+        mEnd = mBase + mChannel.size();
+        mDurable = mEnd;
+
+        if (fsyncMs > 0) {
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "journal-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync(mEnd);
+                }
+            }, fsyncMs, fsyncMs, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                sync(mEnd);
+            }
+        }));
+        Logger.getInstance().Log("journal open at " + dir + ", end=" + mEnd + ", " + mOffsets.size()
+            + " known users, " + mChains.size() + " conversations, keeping "
+            + (keepSegments > 0 ? keepSegments + " x " + (segmentBytes >> 20) + " MB" : "everything"));
+    }
+
+    static String segmentName(long base) {
+        return String.format("%020d.seg", base);
+    }
+
+    /** The conversation a record belongs to, null for OFFSET records and chats missing a side. */
+    public static String conversation(byte kind, String source, String destination) {
+        if (kind == BROADCAST) {
+            return "*";
+        }
+        if (kind != CHAT || source == null || destination == null) {
+            return null;
+        }
+        return source.compareTo(destination) < 0 ? source + "\n" + destination : destination + "\n" + source;
+    }
+
+    /**
+     * Replays what came after the checkpoint: offsets and conversation
+     * heads are brought up to date, and the log is cut at the first record
+     * that doesn't check out.
+     */
+    private void recover(long through) throws IOException {
+        long reached = scan(through, Long.MAX_VALUE, new Visitor() {
+            public void record(Record r) {
+                if (r.kind == OFFSET) {
+                    mOffsets.put(r.source, r.time);
+                } else {
+                    String conversation = conversation(r.kind, r.source, r.destination);
+                    if (conversation != null) {
+                        chain(conversation).add(r.position);
+                    }
+                }
+            }
+        });
+        Map.Entry<Long, File> holder = mSegments.floorEntry(reached);
+        if (holder == null) {
+            return;
+        }
+        long length = holder.getValue().length();
+        if (reached - holder.getKey() < length) {
+            Logger.getInstance().warn("journal: cutting " + (length - (reached - holder.getKey()))
+                + " bytes of torn or corrupt tail at " + reached);
+            FileChannel ch = FileChannel.open(holder.getValue().toPath(), StandardOpenOption.WRITE);
+            try {
+                ch.truncate(reached - holder.getKey());
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+        }
+        // anything after a corrupt record can't be trusted either
+        while (mSegments.lastKey() > holder.getKey()) {
+            mSegments.pollLastEntry().getValue().delete();
+        }
+    }
+
+    public long end() {
+        return mEnd;
+    }
+
+    private Chain chain(String conversation) {
+        Chain c = mChains.get(conversation);
+        if (c == null) {
+            c = new Chain();
+            Chain raced = mChains.putIfAbsent(conversation, c);
+            if (raced != null) {
+                c = raced;
+            }
+        }
+        return c;
+    }
+
+    /** Appends a record and returns its position. */
+    public long append(byte kind, long time, String source, String destination, String body) throws IOException {
+        byte[] s = utf8(source);
+        byte[] d = utf8(destination);
+        byte[] b = utf8(body);
+        int length = 1 + 8 + 8 + 8 + sizeOf(s) + sizeOf(d) + sizeOf(b);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + length);
+        buf.putInt(length);
+        buf.putInt(0);
+        buf.put(kind);
+        buf.putLong(time);
+        buf.putLong(-1);
+        buf.putLong(-1);
+        putBytes(buf, s);
+        putBytes(buf, d);
+        putBytes(buf, b);
+        String conversation = conversation(kind, source, destination);
+        CRC32 crc = new CRC32();
+
+        long position;
+        mWriteLock.lock();
+        try {
+            if (mEnd > mBase && mEnd + HEADER + length - mBase > mSegmentBytes) {
+                roll();
+            }
+            position = mEnd;
+            Chain chain = null;
+            if (conversation != null) {
+                // the links are only known now, so the checksum is taken here too
+                chain = chain(conversation);
+                buf.putLong(HEADER + 9, chain.mHead);
+                buf.putLong(HEADER + 17, chain.skip());
+            }
+            crc.update(buf.array(), HEADER, length);
+            buf.putInt(4, (int) crc.getValue());
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    mChannel.write(buf);
+                }
+            } catch (IOException e) {
+                // don't leave half a record for the next one to follow
+                mChannel.truncate(position - mBase);
+                mChannel.position(position - mBase);
+                throw e;
+            }
+            mEnd = position + HEADER + length;
+            if (chain != null) {
+                chain.add(position);
+            }
+            if (kind == OFFSET) {
+                // under the lock, so a checkpoint never misses an offset it has passed
+                mOffsets.put(source, time);
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+        if (mFsyncMs == 0) {
+            sync(position + HEADER + length);
+        }
+        return position;
+    }
+
+    /**
+     * Makes everything before upTo durable. Whoever gets the lock syncs
+     * all that was written so far, the callers queued behind it usually
+     * find their part already done: that is the group commit.
+     */
+    public void sync(long upTo) {
+        if (mDurable >= upTo) {
+            return;
+        }
+        mSyncLock.lock();
+        try {
+            if (mDurable >= upTo) {
+                return;
+            }
+            long end = mEnd;
+            mChannel.force(false);
+            mDurable = end;
+        } catch (IOException e) {
+            Logger.getInstance().warn("journal sync failed: " + e.getMessage());
+        } finally {
+            mSyncLock.unlock();
+        }
+    }
+
+    /** Called with the write lock held. */
+    private void roll() throws IOException {
+        mSyncLock.lock();
+        try {
+            mChannel.force(false);
+            mChannel.close();
+            mDurable = mEnd;
+            writeCheckpoint(mEnd);
+            File next = new File(mDir, segmentName(mEnd));
+            mChannel = FileChannel.open(next.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            mBase = mEnd;
+            mSegments.put(mBase, next);
+        } finally {
+            mSyncLock.unlock();
+        }
+        while (mKeepSegments > 0 && mSegments.size() > mKeepSegments) {
+            Map.Entry<Long, File> old = mSegments.pollFirstEntry();
+            FileChannel reader = mReaders.remove(old.getKey());
+            if (reader != null) {
+                reader.close();
+            }
+            old.getValue().delete();
+        }
+    }
+
+    private void writeCheckpoint(long through) throws IOException {
+        File tmp = new File(mDir, CHECKPOINT + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeLong(SPINES);
+            out.writeLong(through);
+            out.writeInt(mOffsets.size());
+            for (Map.Entry<String, Long> e : mOffsets.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(mChains.size());
+            for (Map.Entry<String, Chain> e : mChains.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        Files.move(tmp.toPath(), new File(mDir, CHECKPOINT).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Loads the offsets, returns the position the checkpoint covers. */
+    private long readCheckpoint() throws IOException {
+        File file = new File(mDir, CHECKPOINT);
+        if (!file.exists()) {
+            return mSegments.isEmpty() ? 0 : mSegments.firstKey();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long through = in.readLong();
+            boolean spines = through == SPINES;
+            if (spines) {
+                through = in.readLong();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String user = in.readUTF();
+                mOffsets.put(user, in.readLong());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String conversation = in.readUTF();
+                mChains.put(conversation, Chain.read(in, spines));
+            }
+            return through;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Whether the user was ever seen, so a message to them can wait for them. */
+    public boolean known(String user) {
+        return user != null && mOffsets.containsKey(user);
+    }
+
+    public Long offset(String user) {
+        return mOffsets.get(user);
+    }
+
+    /** The user has everything before position. */
+    public void markRead(String user, long position) throws IOException {
+        append(OFFSET, position, user, null, null);
+    }
+
+    /**
+     * Collects the chats to user and the broadcasts in [from, to), keeping
+     * at most max of them (the newest). Returns how many there were.
+     */
+    public int backlog(final String user, long from, long to, final ArrayDeque<ChatMessage> out, final int max) throws IOException {
+        final int[] found = { 0 };
+        scan(from, to, new Visitor() {
+            public void record(Record r) {
+                ChatMessage msg;
+                if (r.source == null || (r.kind == CHAT && r.destination == null)) {
+                    // written anonymously by an older server, nobody to say it came from
+                    return;
+                }
+                if (r.kind == CHAT && user.compareTo(r.destination) == 0) {
+                    msg = new ChatMessage();
+                } else if (r.kind == BROADCAST && user.compareTo(r.source) != 0) {
+                    msg = new BroadcastMessage();
+                } else {
+                    return;
+                }
+                msg.mSource = r.source;
+                msg.mDestination = r.destination;
+                msg.mBody = r.body;
+                msg.mTimeSent = new Date(r.time);
+                found[0]++;
+                if (out.size() == max) {
+                    out.pollFirst();
+                }
+                out.addLast(msg);
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The newest messages of a conversation sent in [since, until), at
+     * most count, oldest first. Walks back from the newest record, over
+     * skips that still land at or after until, then record by record.
+     * Records in deleted segments are not found (see retention above).
+     */
+    public ArrayDeque<Record> history(String conversation, long since, long until, int count) {
+        ArrayDeque<Record> out = new ArrayDeque<Record>();
+        Chain chain = mChains.get(conversation);
+        if (chain == null || count <= 0) {
+            return out;
+        }
+        Record r = read(chain.mHead);
+        while (r != null && r.time >= until) {
+            Record skip = r.skip >= 0 ? read(r.skip) : null;
+            if (skip != null && skip.time >= until) {
+                r = skip;
+            } else {
+                r = r.prev >= 0 ? read(r.prev) : null;
+            }
+        }
+        while (r != null && r.time >= since && out.size() < count) {
+            out.addFirst(r);
+            r = r.prev >= 0 ? read(r.prev) : null;
+        }
+        return out;
+    }
+
+    /** The record at position, null when it is gone (segment deleted) or damaged. */
+    public Record read(long position) {
+        Map.Entry<Long, File> segment = mSegments.floorEntry(position);
+        if (segment == null || position >= mEnd) {
+            return null;
+        }
+        try {
+            FileChannel ch = mReaders.get(segment.getKey());
+            if (ch == null) {
+                ch = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ);
+                FileChannel raced = mReaders.putIfAbsent(segment.getKey(), ch);
+                if (raced != null) {
+                    ch.close();
+                    ch = raced;
+                }
+            }
+            long at = position - segment.getKey();
+            ByteBuffer buf = ByteBuffer.allocate(512);
+            readFully(ch, buf, at);
+            int length = buf.getInt(0);
+            if (length < 25 || length > MAX_RECORD) {
+                return null;
+            }
+            if (HEADER + length > buf.capacity()) {
+                buf = ByteBuffer.allocate(HEADER + length);
+            }
+            buf.clear().limit(HEADER + length);
+            readFully(ch, buf, at);
+            return parse(buf, 0, position);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, at);
+            if (n < 0) {
+                break;
+            }
+            at += n;
+        }
+        buf.flip();
+    }
+
+    /** Checks and decodes the record starting at start in buf; null if it doesn't check out. */
+    static Record parse(ByteBuffer buf, int start, long position) {
+        if (buf.limit() - start < HEADER) {
+            return null;
+        }
+        int length = buf.getInt(start);
+        if (length < 25 || length > MAX_RECORD || buf.limit() - start < HEADER + length) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), start + HEADER, length);
+        if ((int) crc.getValue() != buf.getInt(start + 4)) {
+            return null;
+        }
+        buf.position(start + HEADER);
+        Record r = new Record();
+        r.position = position;
+        r.kind = buf.get();
+        r.time = buf.getLong();
+        r.prev = buf.getLong();
+        r.skip = buf.getLong();
+        r.source = getString(buf);
+        r.destination = getString(buf);
+        r.body = getString(buf);
+        buf.position(start + HEADER + length);
+        return r;
+    }
+
+    /**
+     * Reads the records in [from, to) in order. Stops at the first record
+     * that is cut short or fails its checksum and returns where it stopped.
+     * Segments that were already deleted are skipped.
+     */
+    public long scan(long from, long to, Visitor visitor) throws IOException {
+        Long first = mSegments.floorKey(from);
+        if (first == null) {
+            if (mSegments.isEmpty()) {
+                return from;
+            }
+            first = mSegments.firstKey();
+            from = first;
+        }
+        long position = from;
+        for (Map.Entry<Long, File> e : mSegments.tailMap(first, true).entrySet()) {
+            long base = e.getKey();
+            if (base >= to) {
+                break;
+            }
+            position = Math.max(position, base);
+            FileChannel ch;
+            try {
+                ch = FileChannel.open(e.getValue().toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException gone) {
+                continue;
+            }
+            try {
+                long size = ch.size();
+                position = new SegmentReader(ch, base, position, Math.min(size, to - base)).run(visitor);
+                if (position < base + size && position < to) {
+                    break;
+                }
+            } finally {
+                ch.close();
+            }
+        }
+        return position;
+    }
+
+    /** Buffered walk over one segment file. */
+    static class SegmentReader
+    {
+        FileChannel mChannel;
+        long mBase;
+        long mPosition;
+        long mReadAt;
+        long mLimit;
+        ByteBuffer mBuf = ByteBuffer.allocate(64 * 1024);
+
+        SegmentReader(FileChannel ch, long base, long position, long limit) {
+            mChannel = ch;
+            mBase = base;
+            mPosition = position;
+            mReadAt = position - base;
+            mLimit = limit;
+            mBuf.limit(0);
+        }
+
+        long run(Visitor visitor) throws IOException {
+            while (ensure(HEADER)) {
+                int length = mBuf.getInt(mBuf.position());
+                if (length < 25 || length > MAX_RECORD || !ensure(HEADER + length)) {
+                    break;
+                }
+                Record r = parse(mBuf, mBuf.position(), mPosition);
+                if (r == null) {
+                    break;
+                }
+                visitor.record(r);
+                mPosition += HEADER + length;
+            }
+            return mPosition;
+        }
+
+        /** Makes sure need bytes are buffered; false at the end of the data. */
+        boolean ensure(int need) throws IOException {
+            if (mBuf.remaining() >= need) {
+                return true;
+            }
+            if (mBuf.capacity() < need) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, 2 * mBuf.capacity()));
+                bigger.put(mBuf);
+                mBuf = bigger;
+            } else {
+                mBuf.compact();
+            }
+            while (mBuf.hasRemaining() && mReadAt < mLimit) {
+                int room = (int) Math.min(mBuf.remaining(), mLimit - mReadAt);
+                int limit = mBuf.limit();
+                mBuf.limit(mBuf.position() + room);
+                int n = mChannel.read(mBuf, mReadAt);
+                mBuf.limit(limit);
+                if (n < 0) {
+                    break;
+                }
+                mReadAt += n;
+            }
+            mBuf.flip();
+            return mBuf.remaining() >= need;
+        }
+    }
+
+    static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    static void putBytes(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+/**
+ * The part of the journal a logged in user gets live. A message whose
+ * journal position is inside [from, until) is sent right away; anything
+ * outside is left for the offline replay at the next login. The bounds
+ * are taken from the journal's end while the other side is PENDING, and
+ * readers wait out PENDING, so every message is either sent live or
+ * replayed, never both and never neither.
+ */
+public class LiveWindow
+{
+    static final long PENDING = Long.MIN_VALUE;
+    static final long NONE = Long.MAX_VALUE;
+
+    private volatile long mFrom = NONE;
+    private volatile long mUntil = NONE;
+
+    /** Starts live delivery; returns the mark where the replay has to stop. */
+    public long open(Journal journal) {
+        mFrom = PENDING;
+        mUntil = NONE;
+        long mark = journal.end();
+        mFrom = mark;
+        return mark;
+    }
+
+    /** Ends live delivery; returns where the user stopped, or -1 if it wasn't open. */
+    public long close(Journal journal) {
+        if (mFrom == NONE || mUntil != NONE) {
+            return -1;
+        }
+        mUntil = PENDING;
+        long end = journal.end();
+        mUntil = end;
+        return end;
+    }
+
+    public boolean covers(long position) {
+        while (true) {
+            long from = mFrom;
+            if (from == PENDING) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long until = mUntil;
+            if (until == PENDING) {
+                Thread.onSpinWait();
+                continue;
+            }
+            return position >= from && position < until;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import common.MsgType;
+
+/**
+ * Counters and histograms of the socket server. Recording is an atomic
+ * add into storage that exists up front, so the message path never
+ * allocates for it; everything else (gauges, percentiles) is worked out
+ * when somebody reads.
+ *
+ * Read through JMX (MBean chat:type=Metrics, one Long attribute per
+ * value) or as plain text "chat_<name> <value>" lines from
+ * http://127.0.0.1:<chat.metrics.port>/metrics (default 9091, 9091 + n
+ * on cluster node n, -1 turns the listener off). Durations are in nanoseconds.
+ */
+public class Metrics
+{
+    private static final MsgType[] TYPES = MsgType.values();
+
+    // requests handled, by MsgType ordinal
+    public static AtomicLongArray mMessages = new AtomicLongArray(TYPES.length);
+    // time spent in ChatProtocol.handle
+    public static Histogram mHandle = new Histogram();
+    // recipients of a broadcast or room message
+    public static Histogram mFanout = new Histogram();
+    // accept to login
+    public static Histogram mHandshake = new Histogram();
+    // building a frame (Encoded, or a reply on the nio path)
+    public static Histogram mEncode = new Histogram();
+    // one write of the blocking writer, serialization included
+    public static Histogram mWrite = new Histogram();
+    // chat / broadcast accepted to frame written to the recipient's socket
+    public static Histogram mDelivery = new Histogram();
+
+    public static LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> out = new LinkedHashMap<String, Long>();
+        out.put("connections_accepted", HandshakeStage.mAccepted.get());
+        out.put("connections_rejected", HandshakeStage.mRejected.get());
+        out.put("handshakes_timed_out", HandshakeStage.mTimedOut.get());
+        out.put("handshakes_pending", HandshakeStage.pending());
+        long queued = 0;
+        long deepest = 0;
+        long dropped = 0;
+        long deflating = 0;
+        Session[] sessions = Server.mClientsList.snapshot();
+        for (Session s : sessions) {
+            int depth = s.queueDepth();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+            dropped += s.droppedCount();
+            if (s.mDeflate) {
+                deflating++;
+            }
+        }
+        out.put("sessions", (long) sessions.length);
+        out.put("outbox_queued", queued);
+        out.put("outbox_deepest", deepest);
+        out.put("outbox_dropped", dropped);
+        out.put("rate_limited_user", RateLimiter.mUserRejected.get());
+        out.put("rate_limited_global", RateLimiter.mGlobalRejected.get());
+        out.put("rooms", (long) Rooms.mRooms.size());
+        out.put("presence_users", (long) Presence.count());
+        out.put("presence_version", Presence.version());
+        out.put("presence_watchers", (long) Presence.mWatchers.size());
+        out.put("presence_deltas", Presence.mDeltas.get());
+        out.put("presence_snapshots", Presence.mSnapshots.get());
+        out.put("compress_active", Compression.active() ? 1L : 0L);
+        out.put("compress_sessions", deflating);
+        out.put("compress_raw_bytes", Compression.mRawBytes.get());
+        out.put("compress_deflated_bytes", Compression.mDeflatedBytes.get());
+        out.put("compress_plain_frames", Compression.mPlainFrames.get());
+        out.put("pool_slabs", BufferPool.mSlabs.get());
+        out.put("pool_free", BufferPool.free());
+        out.put("pool_oversize", BufferPool.mOversize.get());
+        if (Server.mJournal != null) {
+            out.put("journal_end", Server.mJournal.end());
+        }
+        if (Cluster.enabled()) {
+            out.put("cluster_links", (long) Cluster.linksUp());
+            out.put("cluster_remote_users", (long) Cluster.mPresence.size());
+            out.put("cluster_forwarded", Cluster.mForwarded.get());
+            out.put("cluster_received", Cluster.mReceived.get());
+            out.put("cluster_dropped", Cluster.mDropped.get());
+        }
+        for (int i = 0; i < TYPES.length; i++) {
+            out.put("messages_" + TYPES[i].name(), mMessages.get(i));
+        }
+        mHandle.snapshot("handle_ns", out);
+        mFanout.snapshot("fanout", out);
+        mHandshake.snapshot("handshake_ns", out);
+        mEncode.snapshot("encode_ns", out);
+        mWrite.snapshot("write_ns", out);
+        mDelivery.snapshot("delivery_ns", out);
+        Compression.mDeflate.snapshot("deflate_ns", out);
+        return out;
+    }
+
+    /** The plain-text form served over HTTP. */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            text.append("chat_").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Registers the MBean and starts the HTTP listener. */
+    public static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("chat:type=Metrics"));
+        } catch (Exception e) {
+            Logger.getInstance().warn("metrics: no JMX bean: " + e.getMessage());
+        }
+        int port = Integer.getInteger("chat.metrics.port", NodeDefaults.port(9091));
+        if (port < 0) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            http.start();
+            Logger.getInstance().Log("metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Logger.getInstance().warn("metrics: can't listen on " + port + ": " + e.getMessage());
+        }
+    }
+
+    /** Read-only MBean over snapshot(). */
+    static class Bean implements DynamicMBean
+    {
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Long value = snapshot().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            LinkedHashMap<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            LinkedHashMap<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
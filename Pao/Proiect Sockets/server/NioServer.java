@@ -0,0 +1,650 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+import common.BinaryCodec;
+import common.Deflate;
+import common.Encoded;
+import common.Message;
+import common.MsgType;
+import common.Tagged;
+
+/**
+ * Non-blocking server mode. The calling thread accepts connections and
+ * hands them round robin to a fixed number of selector loops, each one
+ * owning many sessions. Clients must use the binary protocol
+ * (common.BinaryWire) since a selector cannot wait in readObject.
+ *
+ * A loop never waits on the journal or the cluster: requests that may
+ * (see ChatProtocol.mayWait) and the cleanup of a lost session run on
+ * ChatProtocol.WORKERS, and the reply is queued from there. A login the
+ * cluster has to decide holds no thread at all; the session's next
+ * requests run once the answer came. A session's requests still run one
+ * at a time and in order; once one is handed off the ones after it
+ * follow. The loop stops reading a session that has HANDOFF_MAX requests
+ * handed off until the workers caught up, so a pipelining client can't
+ * run ahead of its own replies.
+ */
+public class NioServer
+{
+    private int mPort;
+    private EventLoop[] mLoops;
+
+    public NioServer(int port, int loops) throws IOException {
+        mPort = port;
+        mLoops = new EventLoop[Math.max(1, loops)];
+        EventLoop.mCount = Math.max(EventLoop.mCount, mLoops.length);
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new EventLoop(i);
+        }
+    }
+
+    public void serve() throws IOException {
+        ServerSocketChannel acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(mPort), 1024);
+        for (EventLoop loop : mLoops) {
+            loop.start();
+        }
+        Logger.getInstance().Log("nio server on port " + mPort + " with " + mLoops.length + " loops");
+        int next = 0;
+        while (true) {
+            SocketChannel channel = acceptor.accept();
+            if (!HandshakeStage.admit()) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            mLoops[next].register(channel);
+            next = (next + 1) % mLoops.length;
+        }
+    }
+}
+
+class EventLoop extends Thread
+{
+    private Selector mSelector;
+    private ConcurrentLinkedQueue<SocketChannel> mNewChannels = new ConcurrentLinkedQueue<SocketChannel>();
+    // sessions other threads queued output for, linked through mNextFlush
+    private AtomicReference<NioSession> mPendingFlush = new AtomicReference<NioSession>();
+    // Shared by every session of this loop; only partial frames are copied out.
+    private ByteBuffer mReadBuffer = ByteBuffer.allocate(64 * 1024);
+    private int mIndex;
+    // deflate output of this loop's sessions, copied into a pooled frame right after
+    ByteBuffer mDeflated = ByteBuffer.allocate(4096);
+
+    // loops made so far, the size of Frame's views
+    static volatile int mCount = 0;
+
+    EventLoop(int index) throws IOException {
+        super("nio-loop-" + index);
+        mIndex = index;
+        mSelector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+        mNewChannels.add(channel);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Called by any thread that queued output for a session of this loop,
+     * at most once until the flush runs (NioSession.mFlushScheduled).
+     */
+    void scheduleFlush(NioSession session) {
+        if (Thread.currentThread() == this) {
+            session.flush();
+            return;
+        }
+        NioSession head;
+        do {
+            head = mPendingFlush.get();
+            session.mNextFlush = head;
+        } while (!mPendingFlush.compareAndSet(head, session));
+        mSelector.wakeup();
+    }
+
+    /**
+     * A buffer over frame's bytes with a position of this loop's own, so
+     * sessions on other loops can write the same frame at the same time.
+     * Only valid until the next call; runs on this loop only.
+     */
+    ByteBuffer view(Frame frame) {
+        if (frame.mClass == Frame.PRIVATE) {
+            return frame.mBuffer;
+        }
+        if (!frame.mReused) {
+            return frame.mBuffer.duplicate();
+        }
+        ByteBuffer[] views = frame.views(mCount);
+        if (mIndex >= views.length) {
+            return frame.mBuffer.duplicate();
+        }
+        ByteBuffer view = views[mIndex];
+        if (view == null) {
+            view = frame.mBuffer.duplicate();
+            views[mIndex] = view;
+        }
+        return view;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                mSelector.select();
+                SocketChannel channel;
+                while ((channel = mNewChannels.poll()) != null) {
+                    SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+                    NioSession session = new NioSession(channel, key, this);
+                    key.attach(session);
+                    HandshakeStage.start(session);
+                    session.send(ChatProtocol.GREETING);
+                }
+                NioSession pending = mPendingFlush.getAndSet(null);
+                while (pending != null) {
+                    NioSession next = pending.mNextFlush;
+                    pending.mNextFlush = null;
+                    pending.flush();
+                    pending = next;
+                }
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        session.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable(mReadBuffer);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
+
+class NioSession extends Session
+{
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private EventLoop mLoop;
+    private ByteBuffer mPartial = null;
+    private boolean mHelloSeen = false;
+    // frames of the current gathering write, the rest waits in the outbox
+    private Frame[] mBatch = new Frame[BATCH];
+    private ByteBuffer[] mBatchViews = new ByteBuffer[BATCH];
+    private int mBatchSize = 0;
+    // bytes of mBatch[0] already written
+    private int mSent = 0;
+    // taken from the outbox but already in the batch, goes in the next one
+    private Frame mCarry = null;
+    // requests handed to the workers, in order; guarded by this, null when idle
+    private ArrayDeque<Runnable> mHandedOff;
+    // guarded by this: not reading until the workers caught up, and they have
+    private volatile boolean mPaused = false;
+    private boolean mCaughtUp = false;
+    // set by a handed off login that waits on the cluster; worker only
+    private CompletableFuture<?> mWaitingOn;
+    // this connection's deflate stream, once the client asked for it
+    private Deflater mDeflater;
+    AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    // next in the loop's pending flush list, no node is allocated per wakeup
+    NioSession mNextFlush;
+
+    // most frames handed to one gathering write
+    static final int BATCH = 16;
+    // requests handed off after which the session is not read any more
+    static final int HANDOFF_MAX = 64;
+
+    NioSession(SocketChannel channel, SelectionKey key, EventLoop loop) {
+        mChannel = channel;
+        mKey = key;
+        mLoop = loop;
+        mIPAddress = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    protected boolean mayBlock() {
+        // never park a selector loop, ours or one fanning out to us
+        return !(Thread.currentThread() instanceof EventLoop);
+    }
+
+    @Override
+    protected boolean canDeflate() {
+        return true;
+    }
+
+    @Override
+    protected void queued() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mLoop.scheduleFlush(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        HandshakeStage.abandon(this);
+        mOutbox.close();
+        mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        // the loop gives back the frames still in the batch
+        queued();
+    }
+
+    /**
+     * Writes queued frames, up to BATCH of them per gathering write. The
+     * frames stay where they are (shared, often direct buffers); only
+     * this loop's views of them are lined up. Runs on the owning loop only.
+     */
+    void flush() {
+        mFlushScheduled.set(false);
+        if (mKey.isValid()) {
+            resume();
+        }
+        if (!mKey.isValid()) {
+            discard();
+            return;
+        }
+        try {
+            while (fill() > 0) {
+                for (int i = 0; i < mBatchSize; i++) {
+                    ByteBuffer view = mLoop.view(mBatch[i]);
+                    view.limit(mBatch[i].mLength).position(i == 0 ? mSent : 0);
+                    mBatchViews[i] = view;
+                }
+                long written = mBatchSize == 1 ? mChannel.write(mBatchViews[0])
+                    : mChannel.write(mBatchViews, 0, mBatchSize);
+                if (!sent(written)) {
+                    mKey.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            mKey.interestOps(readOps());
+        } catch (IOException e) {
+            drop();
+        }
+    }
+
+    /** Tops the batch up from the outbox; returns its size. */
+    private int fill() {
+        while (mBatchSize < BATCH) {
+            Frame frame = mCarry;
+            mCarry = null;
+            if (frame == null) {
+                Object next = mOutbox.poll();
+                if (next == null || next == Outbox.CLOSED) {
+                    break;
+                }
+                frame = next instanceof Frame ? (Frame) next : frame(next);
+                if (mDeflate) {
+                    frame = deflated(frame);
+                }
+            }
+            // one view per frame and loop, the same frame can't be in a batch twice
+            for (int i = 0; i < mBatchSize; i++) {
+                if (mBatch[i] == frame) {
+                    mCarry = frame;
+                    return mBatchSize;
+                }
+            }
+            mBatch[mBatchSize++] = frame;
+        }
+        return mBatchSize;
+    }
+
+    /** A reply queued as a plain object, framed for this session. */
+    private Frame frame(Object next) {
+        long start = System.nanoTime();
+        Frame frame;
+        if (Server.mPooled) {
+            frame = Frame.encode(next, 0);
+        } else if (next instanceof Encoded) {
+            frame = Frame.wrap(((Encoded) next).frame(), ((Encoded) next).mCreated);
+        } else {
+            frame = Frame.wrap(BinaryCodec.frame(next), 0);
+        }
+        Metrics.mEncode.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    /**
+     * This session's own copy of frame, deflated on its stream, when
+     * compression is on; the shared frame is released right away.
+     */
+    private Frame deflated(Frame frame) {
+        if (!Compression.active()) {
+            Compression.mPlainFrames.incrementAndGet();
+            return frame;
+        }
+        long start = System.nanoTime();
+        if (mDeflater == null) {
+            mDeflater = Deflate.deflater();
+        }
+        ByteBuffer view = mLoop.view(frame);
+        view.limit(frame.mLength).position(4);
+        mLoop.mDeflated.clear();
+        ByteBuffer deflated = Deflate.frame(mDeflater, view, mLoop.mDeflated);
+        mLoop.mDeflated = deflated;
+        deflated.flip();
+        Frame out = Server.mPooled ? Frame.copy(deflated, frame.mCreated)
+            : Frame.wrap(Arrays.copyOf(deflated.array(), deflated.limit()), frame.mCreated);
+        Compression.record(frame.mLength, out.mLength, System.nanoTime() - start);
+        frame.release();
+        return out;
+    }
+
+    /** Retires the frames a write finished; false if one is left half written. */
+    private boolean sent(long written) {
+        long left = mSent + written;
+        int done = 0;
+        long now = 0;
+        while (done < mBatchSize && left >= mBatch[done].mLength) {
+            Frame frame = mBatch[done];
+            left -= frame.mLength;
+            if (frame.mCreated != 0) {
+                if (now == 0) {
+                    now = System.nanoTime();
+                }
+                Metrics.mDelivery.record(now - frame.mCreated);
+            }
+            frame.release();
+            done++;
+        }
+        System.arraycopy(mBatch, done, mBatch, 0, mBatchSize - done);
+        for (int i = mBatchSize - done; i < mBatchSize; i++) {
+            mBatch[i] = null;
+            mBatchViews[i] = null;
+        }
+        mBatchSize -= done;
+        mSent = (int) left;
+        return mBatchSize == 0;
+    }
+
+    /** Gives back the frames of a closed session. */
+    private void discard() {
+        for (int i = 0; i < mBatchSize; i++) {
+            mBatch[i].release();
+            mBatch[i] = null;
+            mBatchViews[i] = null;
+        }
+        mBatchSize = 0;
+        mSent = 0;
+        if (mCarry != null) {
+            mCarry.release();
+            mCarry = null;
+        }
+        Object item;
+        while ((item = mOutbox.poll()) != null) {
+            Frame.release(item);
+        }
+        // zlib memory is native, the GC would only find it much later
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    /** Runs on the owning loop only. */
+    void onReadable(ByteBuffer scratch) {
+        int n;
+        scratch.clear();
+        try {
+            n = mChannel.read(scratch);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            drop();
+            return;
+        }
+        scratch.flip();
+        ByteBuffer in = scratch;
+        if (mPartial != null) {
+            if (mPartial.remaining() < scratch.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(mPartial.position() + scratch.remaining());
+                mPartial.flip();
+                bigger.put(mPartial);
+                mPartial = bigger;
+            }
+            mPartial.put(scratch).flip();
+            in = mPartial;
+        }
+        if (!decodeFrames(in)) {
+            return;
+        }
+        if (!in.hasRemaining()) {
+            mPartial = null;
+        } else if (in == scratch) {
+            mPartial = ByteBuffer.allocate(Math.max(in.remaining(), 256));
+            mPartial.put(in);
+        } else {
+            in.compact();
+        }
+    }
+
+    private int readOps() {
+        return mPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Reads again once the workers caught up with a paused session, starting
+     * with the frames already buffered. Runs on the owning loop only.
+     */
+    private void resume() {
+        synchronized (this) {
+            if (!mCaughtUp) {
+                return;
+            }
+            mCaughtUp = false;
+            mPaused = false;
+        }
+        mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+        if (mPartial == null) {
+            return;
+        }
+        mPartial.flip();
+        if (!decodeFrames(mPartial)) {
+            return;
+        }
+        if (mPartial.hasRemaining()) {
+            mPartial.compact();
+        } else {
+            mPartial = null;
+        }
+    }
+
+    /** Handles every complete frame in the buffer; false once the session is gone. */
+    private boolean decodeFrames(ByteBuffer in) {
+        if (!mHelloSeen) {
+            if (in.remaining() < 2) {
+                return true;
+            }
+            byte magic = in.get();
+            int version = in.get() & 0xFF;
+            if (magic != BinaryCodec.MAGIC || version < 1 || version > BinaryCodec.VERSION) {
+                drop();
+                return false;
+            }
+            mHelloSeen = true;
+        }
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > BinaryCodec.MAX_FRAME) {
+                drop();
+                return false;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.position(in.position() + 4);
+            Message msg;
+            int id = 0;
+            try {
+                Object obj = BinaryCodec.decode(in.array(), in.arrayOffset() + in.position(), length);
+                if (obj instanceof Tagged) {
+                    id = ((Tagged) obj).mId;
+                    obj = ((Tagged) obj).mValue;
+                }
+                msg = (Message) obj;
+            } catch (Exception e) {
+                drop();
+                return false;
+            }
+            in.position(in.position() + length);
+            if (offloading() || ChatProtocol.mayWait(msg.getType())) {
+                final Message request = msg;
+                final int requestId = id;
+                boolean full = offload(new Runnable() {
+                    public void run() {
+                        answer(request, requestId);
+                    }
+                });
+                if (msg.getType() == MsgType.MSG_DISCONNECT) {
+                    return false;
+                }
+                if (full) {
+                    // the rest stays buffered, see resume
+                    mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                    return true;
+                }
+            } else if (!answer(msg, id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Handles one request and queues the reply; false once the session is gone. */
+    private boolean answer(Message msg, final int id) {
+        Object res = ChatProtocol.handle(this, msg);
+        if (msg.getType() == MsgType.MSG_DISCONNECT) {
+            return false;
+        }
+        if (res instanceof CompletableFuture) {
+            // a login the cluster decides, handed off (mayWait): the requests after it wait
+            mWaitingOn = ((CompletableFuture<?>) res).thenAccept(new Consumer<Object>() {
+                public void accept(Object reply) {
+                    try {
+                        send(ChatProtocol.reply(id, reply));
+                    } catch (IOException e) {
+                        drop();
+                    }
+                }
+            });
+            return true;
+        }
+        try {
+            send(ChatProtocol.reply(id, res));
+        } catch (IOException e) {
+            drop();
+            return false;
+        }
+        return true;
+    }
+
+    /** Whether requests of this session are handed off, so the next one has to be as well. */
+    private synchronized boolean offloading() {
+        return mHandedOff != null;
+    }
+
+    /**
+     * Runs task on the workers after whatever this session handed off
+     * before; true when that is HANDOFF_MAX tasks and reading has to pause.
+     */
+    private boolean offload(Runnable task) {
+        synchronized (this) {
+            if (mHandedOff != null) {
+                mHandedOff.add(task);
+                if (mHandedOff.size() >= HANDOFF_MAX) {
+                    mPaused = true;
+                }
+                return mPaused;
+            }
+            mHandedOff = new ArrayDeque<Runnable>();
+            mHandedOff.add(task);
+        }
+        ChatProtocol.WORKERS.execute(new Runnable() {
+            public void run() {
+                runHandedOff();
+            }
+        });
+        return false;
+    }
+
+    /** Runs the handed off tasks in order, on a worker. */
+    private void runHandedOff() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = mHandedOff.poll();
+                if (next == null) {
+                    mHandedOff = null;
+                    if (mPaused) {
+                        mCaughtUp = true;
+                        queued();
+                    }
+                    return;
+                }
+            }
+            try {
+                next.run();
+            } catch (Exception e) {
+                Logger.getInstance().warn("request of " + mNickname + " failed: " + e);
+            }
+            CompletableFuture<?> waiting = mWaitingOn;
+            if (waiting != null) {
+                // no worker waits for the cluster, the answer picks up from here
+                mWaitingOn = null;
+                waiting.whenCompleteAsync(new BiConsumer<Object, Throwable>() {
+                    public void accept(Object done, Throwable error) {
+                        runHandedOff();
+                    }
+                }, ChatProtocol.WORKERS);
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void lose() {
+        close();
+        // storing the read offset is an append
+        offload(new Runnable() {
+            public void run() {
+                ChatProtocol.lost(NioSession.this);
+            }
+        });
+    }
+
+    private void drop() {
+        if (mChannel.isOpen()) {
+            lose();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+/**
+ * Defaults that must differ between cluster nodes started in one
+ * directory: the journal, the log file and the metrics port get the node
+ * index appended. Read straight from the system properties, as Logger
+ * needs them before Cluster is loaded. A server running alone keeps the
+ * plain defaults.
+ */
+final class NodeDefaults
+{
+    // index of this node, -1 without -Dchat.cluster.nodes
+    static final int mNode = nodeIndex();
+
+    private NodeDefaults() { }
+
+    private static int nodeIndex() {
+        String nodes = System.getProperty("chat.cluster.nodes");
+        if (nodes == null || nodes.length() == 0) {
+            return -1;
+        }
+        return Integer.getInteger("chat.cluster.node", 0);
+    }
+
+    /** name-<node>, before the extension if there is one. */
+    static String name(String name) {
+        if (mNode < 0) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return name + "-" + mNode;
+        }
+        return name.substring(0, dot) + "-" + mNode + name.substring(dot);
+    }
+
+    /** port + node. */
+    static int port(int port) {
+        return mNode < 0 ? port : port + mNode;
+    }
+}
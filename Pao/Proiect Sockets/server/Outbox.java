@@ -0,0 +1,120 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of replies waiting to be written to one client. Senders
+ * only ever touch the queue; the session's writer drains it, so a slow
+ * receiver never holds up whoever is sending to it. Nodes are allocated
+ * per item, so an idle session's outbox costs next to nothing however
+ * large the bound.
+ *
+ * What happens when the queue is full is decided by the policy:
+ * DROP_OLDEST discards the oldest queued item, DISCONNECT drops the slow
+ * client, BLOCK waits up to blockMillis for room and then disconnects.
+ */
+public class Outbox
+{
+    public enum Policy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    /** Put last in the queue by close(); tells the writer to stop. */
+    public static final Object CLOSED = new Object();
+
+    private LinkedBlockingQueue<Object> mQueue;
+    private Policy mPolicy;
+    private long mBlockMillis;
+    private volatile boolean mClosed = false;
+    public AtomicLong mDropped = new AtomicLong();
+
+    public Outbox(int capacity, Policy policy, long blockMillis) {
+        mQueue = new LinkedBlockingQueue<Object>(capacity);
+        mPolicy = policy;
+        mBlockMillis = blockMillis;
+    }
+
+    /**
+     * Queues an item. Returns false when the client has to be disconnected
+     * (or already was); the item is not queued then.
+     * A caller that must not wait (a selector loop) passes mayBlock=false.
+     */
+    public boolean offer(Object item, boolean mayBlock) {
+        while (!mClosed) {
+            if (mQueue.offer(item)) {
+                return true;
+            }
+            switch(mPolicy) {
+                case DROP_OLDEST:
+                {
+                    Object dropped = mQueue.poll();
+                    if (dropped == CLOSED) {
+                        // raced with close(), which has to end with CLOSED queued
+                        close();
+                        return false;
+                    }
+                    if (dropped != null) {
+                        Frame.release(dropped);
+                        mDropped.incrementAndGet();
+                    }
+                }
+                    break;
+                case BLOCK:
+                    return mayBlock && waitForRoom(item);
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /** Woken as soon as the writer takes something, or close() drains the queue. */
+    private boolean waitForRoom(Object item) {
+        try {
+            return mQueue.offer(item, mBlockMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Blocks for the next item; after CLOSED whatever was queued behind it is released. */
+    public Object take() throws InterruptedException {
+        Object item = mQueue.take();
+        if (item == CLOSED) {
+            release();
+        }
+        return item;
+    }
+
+    public Object poll() {
+        return mQueue.poll();
+    }
+
+    public int size() {
+        return mQueue.size();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Empties the queue and puts CLOSED in it. Senders that saw the outbox
+     * open may still fill the room made, so it drains until CLOSED fits;
+     * they stop once they see mClosed, so this ends.
+     */
+    public void close() {
+        mClosed = true;
+        do {
+            release();
+        } while (!mQueue.offer(CLOSED));
+    }
+
+    private void release() {
+        Object item;
+        while ((item = mQueue.poll()) != null) {
+            Frame.release(item);
+        }
+    }
+}
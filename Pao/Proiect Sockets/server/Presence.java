@@ -0,0 +1,243 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Encoded;
+
+/**
+ * Who is online, in name order: the users of this node and, in a
+ * cluster, those of the other nodes. ls reads pages of it without a lock.
+ *
+ * Sessions can watch it instead of asking again and again. A watcher gets
+ * one snapshot, then every chat.presence.flushMs (default 100) only the
+ * names that came or left meanwhile, as lines of this form:
+ *
+ *   Presence v12 snapshot 1/3:   alice,  bob        (parts of the snapshot at version 12)
+ *   Presence v13:   +carol,  -bob                   (the change from version 12 to 13)
+ *
+ * A name that left and came back within one period is not sent at all, so
+ * a delta is the net change and applying it twice does no harm. A watcher
+ * that sees a version go missing (its outbox dropped a frame) should
+ * watch again. All watcher traffic is sent from one thread, which keeps
+ * snapshots and deltas in version order without holding the lock.
+ */
+public class Presence
+{
+    // most names in one ls page
+    static final int PAGE_MAX = Integer.getInteger("chat.list.pageMax", 200);
+    // most names in one snapshot part or delta
+    static final int CHUNK = Integer.getInteger("chat.presence.chunk", 1000);
+    static final long FLUSH_MS = Long.getLong("chat.presence.flushMs", 100);
+
+    // name -> how many holders (this node, other nodes) say it is online
+    static ConcurrentSkipListMap<String, Integer> mOnline = new ConcurrentSkipListMap<String, Integer>();
+    static final Object LOCK = new Object();
+    // guarded by LOCK: the version watchers have seen, the changes since,
+    // name -> online, and the sessions waiting for their snapshot
+    static long mVersion = 0;
+    static int mCount = 0;
+    static LinkedHashMap<String, Boolean> mChanges = new LinkedHashMap<String, Boolean>();
+    static ArrayList<Session> mJoining = new ArrayList<Session>();
+    static SessionList mWatchers = new SessionList();
+
+    public static AtomicLong mDeltas = new AtomicLong();
+    public static AtomicLong mSnapshots = new AtomicLong();
+
+    static ScheduledExecutorService mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "presence");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    static final Runnable FLUSH = new Runnable() {
+        public void run() {
+            try {
+                flush();
+            } catch (Exception e) {
+                Logger.getInstance().warn("presence flush failed: " + e);
+            }
+        }
+    };
+    static {
+        mFlusher.scheduleWithFixedDelay(FLUSH, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** One more holder says name is online. */
+    public static void online(String name) {
+        synchronized (LOCK) {
+            Integer holders = mOnline.get(name);
+            mOnline.put(name, holders == null ? 1 : holders + 1);
+            if (holders == null) {
+                mCount++;
+                changed(name, true);
+            }
+        }
+    }
+
+    /** A holder of name let it go; it is offline once nobody holds it. */
+    public static void offline(String name) {
+        synchronized (LOCK) {
+            Integer holders = mOnline.get(name);
+            if (holders == null) {
+                return;
+            }
+            if (holders > 1) {
+                mOnline.put(name, holders - 1);
+            } else {
+                mOnline.remove(name);
+                mCount--;
+                changed(name, false);
+            }
+        }
+    }
+
+    // under LOCK
+    private static void changed(String name, boolean online) {
+        // the opposite change still pending means it is back where watchers saw it last
+        if (mChanges.remove(name) == null) {
+            mChanges.put(name, online);
+        }
+    }
+
+    public static boolean isOnline(String name) {
+        return mOnline.containsKey(name);
+    }
+
+    public static int count() {
+        return mCount;
+    }
+
+    public static long version() {
+        synchronized (LOCK) {
+            return mVersion;
+        }
+    }
+
+    /**
+     * One ls page: names starting with prefix, after the name after, at
+     * most count of them (0 or more than PAGE_MAX means PAGE_MAX). When
+     * more names match, the reply says after which name to go on.
+     */
+    public static String page(String prefix, String after, int count) {
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (count <= 0 || count > PAGE_MAX) {
+            count = PAGE_MAX;
+        }
+        Map<String, Integer> from = after != null && after.compareTo(prefix) >= 0
+            ? mOnline.tailMap(after, false)
+            : mOnline.tailMap(prefix, true);
+        ArrayList<String> names = new ArrayList<String>();
+        boolean more = false;
+        for (String name : from.keySet()) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            if (names.size() == count) {
+                more = true;
+                break;
+            }
+            names.add(name);
+        }
+        if (more) {
+            return "Online users (more after " + names.get(names.size() - 1) + "):   " + String.join(",  ", names);
+        }
+        return "Online users:   " + String.join(",  ", names);
+    }
+
+    /** Sends session a snapshot soon, then the deltas after it. */
+    public static void watch(Session session) {
+        synchronized (LOCK) {
+            if (mJoining.contains(session)) {
+                return;
+            }
+            mJoining.add(session);
+            mWatchers.remove(session);
+        }
+        mFlusher.execute(FLUSH);
+    }
+
+    public static void unwatch(Session session) {
+        synchronized (LOCK) {
+            mJoining.remove(session);
+            mWatchers.remove(session);
+        }
+    }
+
+    /**
+     * Sends the changes since the last flush to the watchers and a
+     * snapshot to the sessions that just started watching; only ever runs
+     * on the presence thread.
+     */
+    static void flush() {
+        ArrayList<String> delta = null;
+        long first = 0;
+        ArrayList<String> names = null;
+        ArrayList<Session> joining = null;
+        Session[] watchers;
+        long version;
+        synchronized (LOCK) {
+            if (!mChanges.isEmpty()) {
+                delta = new ArrayList<String>(mChanges.size());
+                for (Map.Entry<String, Boolean> e : mChanges.entrySet()) {
+                    delta.add((e.getValue() ? "+" : "-") + e.getKey());
+                }
+                mChanges.clear();
+                first = mVersion + 1;
+                mVersion += (delta.size() + CHUNK - 1) / CHUNK;
+            }
+            watchers = mWatchers.snapshot();
+            version = mVersion;
+            if (!mJoining.isEmpty()) {
+                names = new ArrayList<String>(mCount);
+                names.addAll(mOnline.keySet());
+                joining = mJoining;
+                mJoining = new ArrayList<Session>();
+                for (Session s : joining) {
+                    mWatchers.add(s);
+                }
+            }
+        }
+        if (delta != null && watchers.length > 0) {
+            for (int at = 0, v = 0; at < delta.size(); at += CHUNK, v++) {
+                String text = "Presence v" + (first + v) + ":   "
+                    + String.join(",  ", delta.subList(at, Math.min(delta.size(), at + CHUNK)));
+                send(text, watchers);
+                mDeltas.incrementAndGet();
+            }
+        }
+        if (joining != null) {
+            Session[] to = joining.toArray(new Session[0]);
+            int parts = Math.max(1, (names.size() + CHUNK - 1) / CHUNK);
+            for (int part = 0; part < parts; part++) {
+                String text = "Presence v" + version + " snapshot " + (part + 1) + "/" + parts + ":   "
+                    + String.join(",  ", names.subList(part * CHUNK, Math.min(names.size(), (part + 1) * CHUNK)));
+                send(text, to);
+            }
+            mSnapshots.addAndGet(to.length);
+        }
+    }
+
+    /** Encodes text once and queues it for every session in to. */
+    static void send(String text, Session[] to) {
+        Object out = Server.mPooled ? Frame.encode(text, 0) : new Encoded(text);
+        for (Session s : to) {
+            try {
+                s.send(out);
+            } catch (Exception e) {
+                // ignore, unable to send
+            }
+        }
+        Frame.release(out);
+    }
+}
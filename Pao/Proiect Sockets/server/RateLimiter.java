@@ -0,0 +1,72 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.MsgType;
+
+/**
+ * Ingress limits, checked before a request does any work. Every user has
+ * a TokenBucket and all users share a global one; a request costs one
+ * token, a broadcast costs more since it fans out to everybody.
+ * Disconnects are never refused.
+ *
+ * Settings (system properties):
+ *   chat.limit.userRate       requests per second per user (default 50, 0 = no limit)
+ *   chat.limit.userBurst      requests a user may send at once (default 100)
+ *   chat.limit.globalRate     requests per second for the whole server (default 100000)
+ *   chat.limit.globalBurst    (default 20000)
+ *   chat.limit.broadcastCost  tokens one broadcast takes (default 10)
+ */
+public class RateLimiter
+{
+    public static final String REJECTED = "Rate limit exceeded, slow down";
+
+    static final double USER_RATE = Double.parseDouble(System.getProperty("chat.limit.userRate", "50"));
+    static final double USER_BURST = Double.parseDouble(System.getProperty("chat.limit.userBurst", "100"));
+    static final int BROADCAST_COST = Integer.getInteger("chat.limit.broadcastCost", 10);
+
+    static TokenBucket mGlobal = new TokenBucket(
+        Double.parseDouble(System.getProperty("chat.limit.globalRate", "100000")),
+        Double.parseDouble(System.getProperty("chat.limit.globalBurst", "20000")));
+
+    public static AtomicLong mUserRejected = new AtomicLong();
+    public static AtomicLong mGlobalRejected = new AtomicLong();
+
+    /** A fresh bucket for a new user. */
+    public static TokenBucket forUser() {
+        return new TokenBucket(USER_RATE, USER_BURST);
+    }
+
+    public static int cost(MsgType type) {
+        switch(type) {
+            case MSG_DISCONNECT:
+                return 0;
+            case MSG_BROADCAST:
+            case MSG_PRESENCE:
+                // a snapshot costs like a broadcast, O(users)
+                return BROADCAST_COST;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Takes the tokens from the user's bucket, then from the global one;
+     * when the global bucket refuses, the user gets theirs back.
+     */
+    public static boolean admit(TokenBucket user, int cost) {
+        if (cost == 0) {
+            return true;
+        }
+        if (!user.tryAcquire(cost)) {
+            mUserRejected.incrementAndGet();
+            return false;
+        }
+        if (!mGlobal.tryAcquire(cost)) {
+            user.refund(cost);
+            mGlobalRejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
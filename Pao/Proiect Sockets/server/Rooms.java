@@ -0,0 +1,58 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Room name -> members. A room message only walks its own member list,
+ * so its cost follows the room size and not the number of users online.
+ * Rooms are created by the first join and dropped with the last leave;
+ * both happen inside the map's per-key compute, so they can't race.
+ */
+public class Rooms
+{
+    static ConcurrentHashMap<String, SessionList> mRooms = new ConcurrentHashMap<String, SessionList>();
+
+    /** Returns false when the session already was a member. */
+    public static boolean join(final Session session, String room) {
+        if (!session.mRooms.add(room)) {
+            return false;
+        }
+        mRooms.compute(room, new BiFunction<String, SessionList, SessionList>() {
+            public SessionList apply(String name, SessionList members) {
+                if (members == null) {
+                    members = new SessionList();
+                }
+                members.add(session);
+                return members;
+            }
+        });
+        return true;
+    }
+
+    /** Returns false when the session was not a member. */
+    public static boolean leave(final Session session, String room) {
+        if (!session.mRooms.remove(room)) {
+            return false;
+        }
+        mRooms.computeIfPresent(room, new BiFunction<String, SessionList, SessionList>() {
+            public SessionList apply(String name, SessionList members) {
+                members.remove(session);
+                return members.size() == 0 ? null : members;
+            }
+        });
+        return true;
+    }
+
+    public static void leaveAll(Session session) {
+        for (String room : session.mRooms) {
+            leave(session, room);
+        }
+    }
+
+    /** Snapshot of the members, empty when the room doesn't exist. */
+    public static Session[] members(String room) {
+        SessionList members = mRooms.get(room);
+        return members == null ? new Session[0] : members.snapshot();
+    }
+}
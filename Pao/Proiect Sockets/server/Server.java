@@ -1,151 +1,164 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.EOFException;
-import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.net.Socket;
 import java.net.ServerSocket;
-import java.io.PrintWriter;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import javax.swing.JOptionPane;
-import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 
 import common.MsgType;
 import common.Message;
-import common.HandshakeMessage;
-import common.BroadcastMessage;
-import common.ChatMessage;
+import common.Wire;
+import common.ObjectWire;
+import common.BinaryWire;
+import common.BinaryCodec;
+import common.Encoded;
+import common.Tagged;
 
-class ClientHandler extends Thread
+class ClientHandler extends Session implements Runnable
 {
     private Socket mClientSocket;
-    public ObjectInputStream mStreamFromClient;
-    public ObjectOutputStream mStreamToClient;        
-    public String mIPAddress;
-    public String mNickname;
+    public Wire mWire;
 
     Logger logger = Logger.getInstance();
 
+    /** Does no I/O, it runs on the accept thread. */
     public ClientHandler(Socket socket)
     {
         mClientSocket = socket;
-        try {
-            mStreamFromClient = new ObjectInputStream(mClientSocket.getInputStream());
-            mStreamToClient = new ObjectOutputStream(mClientSocket.getOutputStream()); 
-            mStreamToClient.flush();
-            mIPAddress = socket.getInetAddress().getHostAddress();
+        mIPAddress = socket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Old clients start with the ObjectOutputStream header, new ones with
+     * BinaryCodec.MAGIC; peek at the first byte to tell them apart.
+     */
+    static Wire openWire(Socket socket) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first == (BinaryCodec.MAGIC & 0xFF)) {
+            return BinaryWire.accept(socket, in);
         }
-        catch(Exception e) {
-            System.out.println(e.getMessage());
+        return new ObjectWire(socket, in);
+    }
+
+    @Override
+    protected void queued() {
+        // the writer thread is already waiting on the outbox
+    }
+
+    @Override
+    protected boolean canDeflate() {
+        return mWire instanceof BinaryWire;
+    }
+
+    @Override
+    public void close() {
+        HandshakeStage.abandon(this);
+        mOutbox.close();
+        try {
+            mClientSocket.close();
+        } catch (IOException e) {
+            // already closed
         }
     }
 
-    public Boolean validNickname(String s) {
-        for (ClientHandler ch : Server.mClientsList) {
-            if (ch.mNickname.compareTo(s) == 0) {
-                return false;
+    /** Drains the outbox to the socket; the only thread that writes to mWire. */
+    void writeLoop() {
+        try {
+            while (true) {
+                Object item = mOutbox.take();
+                if (item == Outbox.CLOSED) {
+                    break;
+                }
+                long start = System.nanoTime();
+                if (mDeflate && Compression.active()) {
+                    byte[] frame = BinaryCodec.frame(item);
+                    int deflated = ((BinaryWire) mWire).writeDeflated(frame);
+                    Compression.record(frame.length, deflated, System.nanoTime() - start);
+                } else {
+                    if (mDeflate) {
+                        Compression.mPlainFrames.incrementAndGet();
+                    }
+                    mWire.write(item);
+                }
+                long end = System.nanoTime();
+                Metrics.mWrite.record(end - start);
+                if (item instanceof Encoded && ((Encoded) item).mCreated != 0) {
+                    Metrics.mDelivery.record(end - ((Encoded) item).mCreated);
+                }
             }
+        } catch (Exception e) {
+            close();
         }
-        return s.length() > 0;
     }
 
     public void run() {
         try {
-            mStreamToClient.writeObject("Enter your nickname:");
+            // reads until the login are bounded by the handshake deadline
+            mClientSocket.setSoTimeout((int) HandshakeStage.TIMEOUT_MS);
+            mWire = openWire(mClientSocket);
+        } catch(Exception e) {
+            if (e instanceof SocketTimeoutException) {
+                HandshakeStage.expire(this);
+            }
+            close();
+            return;
+        }
+        Thread writer = Server.mThreadFactory.newThread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        });
+        writer.start();
+        try {
+            send(ChatProtocol.GREETING);
             boolean stillConnected = true;
+            boolean timeoutCleared = false;
             while(stillConnected)
             {
-                Object cc = mStreamFromClient.readObject();
+                Object cc = mWire.read();
+                int id = 0;
+                if (cc instanceof Tagged) {
+                    id = ((Tagged) cc).mId;
+                    cc = ((Tagged) cc).mValue;
+                }
                 Message msg = (Message) cc;
-                String res = null;
-                switch(msg.getType())
-                {
-                    case MSG_HANDSHAKE:
-                    {
-                        HandshakeMessage hmsg = (HandshakeMessage) msg;
-                        if (validNickname(hmsg.name)) {
-                            this.mNickname = hmsg.name;
-                            logger.Log(this.mNickname + " set name..");
-                            Server.addClient(this);
-                            res = msg.stringFormat();
-                        } else {
-                            res = "Invalid name, try again:";
-                        }
-                    }
-                    break;
-                    case MSG_DISCONNECT:
-                    {
-                        logger.Log(this.mNickname + " got disconnected..");
-                        stillConnected = false;
-                        mClientSocket.close();
-                        Server.removeClient(this);
-                    }
-                    break;
-                    case MSG_LIST:
-                    {
-                        logger.Log(this.mNickname + " requested online user list..");
-                        final ArrayList<String> userList = new ArrayList<String>();
-                        for (ClientHandler ch : Server.mClientsList) {
-                            userList.add(ch.mNickname);
-                        }
-                        String[] userArray = userList.toArray(new String[userList.size()]);
-                        res = "Online users:   " + String.join(",  ", userArray);
-                    }
-                    break;
-                    case MSG_CHAT:
-                    {
-                        ChatMessage cmsg = (ChatMessage) msg;
-                        cmsg.mSource = this.mNickname;
-                        Boolean sent = false;
-                        for (ClientHandler ch : Server.mClientsList) {
-                            if (ch.mNickname.compareTo(cmsg.mDestination) == 0) {
-                                try {
-                                    ch.mStreamToClient.writeObject(msg.stringFormat());
-                                    sent = true;
-                                } catch (Exception e) {
-                                    // ignore, unable to send
-                                }
-                            }
-                        }
-                        if (sent) {
-                            res = "Message sent";
-                        } else {
-                            res = "Invalid recipient";
-                        }
-                    }
-                    break;
-                    case MSG_BROADCAST:
-                    {
-                        BroadcastMessage bmsg = (BroadcastMessage) msg;
-                        bmsg.mSource = this.mNickname;
-                        for (ClientHandler ch : Server.mClientsList) {
-                            try {
-                                ch.mStreamToClient.writeObject(msg.stringFormat());
-                            } catch (Exception e) {
-                                // ignore, unable to send
-                            }
-                        }
-                        res = "Broadcast sent";
-                    }
-                    break;
-                    default:
-                    {
-                        logger.Log("Method not implemented");
-                    }
-                    break;
+                Object res = ChatProtocol.handle(this, msg);
+                if (res instanceof CompletableFuture) {
+                    // a login the cluster decides; only this client's thread waits
+                    res = ((CompletableFuture<?>) res).join();
+                }
+                res = ChatProtocol.reply(id, res);
+                if (!timeoutCleared && mNickname != null) {
+                    mClientSocket.setSoTimeout(0);
+                    timeoutCleared = true;
                 }
                 if (msg.getType() != MsgType.MSG_DISCONNECT) {
-                    mStreamToClient.writeObject(res);
+                    send(res);
+                } else {
+                    stillConnected = false;
                 }
             }
         } catch(EOFException e) {
-            logger.Log(this.mNickname + " got disconnected..");
-            Server.removeClient(this);
+            // the client went away without saying goodbye
+        } catch(SocketTimeoutException e) {
+            HandshakeStage.expire(this);
         } catch(Exception e) {
             System.out.println(e.getMessage());
+        } finally {
+            // a reset, a bad frame or the writer closing the socket frees the name too
+            close();
+            ChatProtocol.lost(this);
         }
     }    
 }
@@ -156,10 +169,20 @@ class ServerConsole extends Thread
         Scanner scan = new Scanner(System.in);
         while (true) {
             String commandStr = scan.nextLine();
+            if (commandStr.compareTo("metrics") == 0) {
+                System.out.print(Metrics.scrape());
+            }
             if (commandStr.compareTo("show") == 0) {
                 System.out.println("number of clients logged in = " + Server.mClientsList.size());
-                for (ClientHandler ch : Server.mClientsList) {
-                    System.out.println(ch.mNickname);
+                System.out.println("connections accepted = " + HandshakeStage.mAccepted.get()
+                    + "  rejected = " + HandshakeStage.mRejected.get()
+                    + "  timed out = " + HandshakeStage.mTimedOut.get()
+                    + "  pending = " + HandshakeStage.pending());
+                System.out.println("rate limited: per user = " + RateLimiter.mUserRejected.get()
+                    + "  global = " + RateLimiter.mGlobalRejected.get());
+                for (Session ch : Server.mClientsList) {
+                    System.out.println(ch.mNickname + "  queued=" + ch.queueDepth() + "  dropped=" + ch.droppedCount()
+                        + "  rejected=" + ch.mRejected);
                 }
             }
         }
@@ -168,31 +191,177 @@ class ServerConsole extends Thread
 
 public class Server 
 {
+    // client port, -Dchat.port; a cluster on one machine gives each node its own
+    public static final int PORT = Integer.getInteger("chat.port", 9090);
+
+    // outbound queue per session, see Outbox; set with -Dchat.outbox.*
+    public static int mOutboxCapacity = Integer.getInteger("chat.outbox.capacity", 1024);
+    public static Outbox.Policy mOutboxPolicy = Outbox.Policy.valueOf(System.getProperty("chat.outbox.policy", "DROP_OLDEST"));
+    public static long mOutboxBlockMillis = Long.getLong("chat.outbox.blockMillis", 1000);
+
     public static ServerSocket mServerSocket;
-    public static ArrayList<ClientHandler> mClientsList;
+    public static SessionList mClientsList = new SessionList();
+    // nickname -> session of every logged in user; the map decides who owns a name
+    public static ConcurrentHashMap<String, Session> mNicknames = new ConcurrentHashMap<String, Session>();
+    // chats and broadcasts kept for offline users, null with -Dchat.journal.dir=off
+    public static Journal mJournal = Journal.fromProperties(NodeDefaults.name("chat-journal"));
+    // makes the reader and writer thread of every blocking session
+    public static ThreadFactory mThreadFactory = Executors.defaultThreadFactory();
+    // outbound frames go to pooled direct buffers (nio server, unless -Dchat.pool=off)
+    public static boolean mPooled = false;
+
+    /**
+     * Usage: java server.Server [blocking | virtual | nio [loops]]
+     * blocking (default) runs one thread per client and accepts both the
+     * binary and the serialized protocol; virtual is the same code on
+     * virtual threads (Java 21+, falls back to blocking otherwise); nio
+     * runs a fixed set of selector loops (one per core unless given) and
+     * speaks the binary protocol. Any of them can be one node of a
+     * cluster, see Cluster.
+     */
     public static void main(String[] args)
     {
         try {
-            mServerSocket = new ServerSocket(9090);
-            mClientsList = new ArrayList<ClientHandler>();
-            
             ServerConsole sc = new ServerConsole();
             sc.start();
-            
-            while(true) {
-                Socket socket = mServerSocket.accept();
-                ClientHandler ch = new ClientHandler(socket);
-                ch.start();
+            Metrics.start();
+            Cluster.start();
+            Compression.start();
+
+            if (args.length > 0 && args[0].compareTo("nio") == 0) {
+                int loops = Runtime.getRuntime().availableProcessors();
+                if (args.length > 1) {
+                    loops = Integer.parseInt(args[1]);
+                }
+                mPooled = System.getProperty("chat.pool", "on").compareTo("off") != 0;
+                new NioServer(PORT, loops).serve();
+            } else if (args.length > 0 && args[0].compareTo("virtual") == 0) {
+                mThreadFactory = virtualThreadFactory();
+                serveBlocking();
+            } else {
+                serveBlocking();
             }
         } catch(Exception e) {
             System.out.print(e.getMessage());
         }
     }
-    public synchronized static void removeClient(ClientHandler ch) {
-        // Basic sync. One other way is to have an active object
+
+    static void serveBlocking() throws IOException {
+        mServerSocket = new ServerSocket(PORT);
+        while(true) {
+            Socket socket = mServerSocket.accept();
+            if (!HandshakeStage.admit()) {
+                socket.close();
+                continue;
+            }
+            ClientHandler ch = new ClientHandler(socket);
+            HandshakeStage.start(ch);
+            mThreadFactory.newThread(ch).start();
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().factory(), looked up by reflection so the server
+     * still builds and runs on JDKs without virtual threads.
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            Logger.getInstance().warn("virtual threads not available, using platform threads");
+            return Executors.defaultThreadFactory();
+        }
+    }
+
+    /**
+     * Atomically gives the name to the session. False when some other
+     * session already holds it. Done right away unless another cluster
+     * node has to be asked; then it completes on ChatProtocol.WORKERS.
+     */
+    public static CompletableFuture<Boolean> claimNickname(final Session ch, final String name) {
+        // taken before the name is visible: chats to it journaled from here on are not live yet
+        long mark = mJournal == null ? -1 : mJournal.end();
+        Session owner = mNicknames.putIfAbsent(name, ch);
+        if (owner != null) {
+            return CompletableFuture.completedFuture(owner == ch);
+        }
+        ch.mClaimMark = mark;
+        // the local map keeps two sessions of this node apart, the cluster the nodes
+        CompletableFuture<Boolean> claim = Cluster.claim(name);
+        if (claim.isDone()) {
+            return CompletableFuture.completedFuture(claimed(ch, name, claim.join()));
+        }
+        // not on the link's reader thread, the login goes on to the journal
+        return claim.thenApplyAsync(new Function<Boolean, Boolean>() {
+            public Boolean apply(Boolean granted) {
+                return claimed(ch, name, granted);
+            }
+        }, ChatProtocol.WORKERS);
+    }
+
+    /** Gives ch the name it holds in mNicknames once the cluster decided. */
+    static boolean claimed(Session ch, String name, boolean granted) {
+        if (!granted) {
+            mNicknames.remove(name, ch);
+            Cluster.offline(name);
+            return false;
+        }
+        String previous = ch.mNickname;
+        ch.mNickname = name;
+        if (previous == null) {
+            addClient(ch);
+        } else {
+            signOff(ch, previous);
+            if (mNicknames.remove(previous, ch)) {
+                Cluster.offline(previous);
+                Presence.offline(previous);
+            }
+        }
+        Cluster.online(name);
+        Presence.online(name);
+        // lost while claiming: that removal may have missed the name
+        if (ch.mRemoved.get() && mNicknames.remove(name, ch)) {
+            Cluster.offline(name);
+            Presence.offline(name);
+            return false;
+        }
+        return true;
+    }
+
+    /** Forgets ch everywhere; only the first call does anything, false for the others. */
+    public static boolean removeClient(Session ch) {
+        if (!ch.mRemoved.compareAndSet(false, true)) {
+            return false;
+        }
         mClientsList.remove(ch);
+        Rooms.leaveAll(ch);
+        Presence.unwatch(ch);
+        if (ch.mNickname != null) {
+            signOff(ch, ch.mNickname);
+            if (mNicknames.remove(ch.mNickname, ch)) {
+                Cluster.offline(ch.mNickname);
+                Presence.offline(ch.mNickname);
+            }
+        }
+        return true;
+    }
+
+    /** Remembers where name stopped getting messages live. */
+    static void signOff(Session ch, String name) {
+        if (mJournal == null) {
+            return;
+        }
+        long end = ch.mLive.close(mJournal);
+        if (end >= 0) {
+            try {
+                mJournal.markRead(name, end);
+            } catch (IOException e) {
+                Logger.getInstance().warn("journal: can't store offset of " + name + ": " + e.getMessage());
+            }
+        }
     }
-    public synchronized static void addClient(ClientHandler ch) {
+    public static void addClient(Session ch) {
         mClientsList.add(ch);
     }
 }
@@ -0,0 +1,83 @@
+package server;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connected user, independent of how its socket is served
+ * (one thread per client or the selector loops). Everything sent to the
+ * client goes through its Outbox.
+ */
+public abstract class Session
+{
+    public String mIPAddress;
+    public String mNickname;
+    // rooms this session joined, so leaving all of them costs O(rooms)
+    public Set<String> mRooms = ConcurrentHashMap.newKeySet();
+    // journal positions this session gets live, the rest is replayed at login
+    public LiveWindow mLive = new LiveWindow();
+    // journal end just before the name was published, replayed from on a first login
+    volatile long mClaimMark = -1;
+    // ingress limit, see RateLimiter
+    public TokenBucket mLimit = RateLimiter.forUser();
+    public long mRejected;
+    // set while the session counts against HandshakeStage's pending cap
+    AtomicBoolean mAwaitingHandshake = new AtomicBoolean(false);
+    // set by the one Server.removeClient that counts
+    final AtomicBoolean mRemoved = new AtomicBoolean(false);
+    ScheduledFuture<?> mHandshakeDeadline;
+    long mAcceptedAt;
+    // the client asked for DEFLATED frames at login, see Compression
+    public volatile boolean mDeflate = false;
+    protected Outbox mOutbox = new Outbox(Server.mOutboxCapacity, Server.mOutboxPolicy, Server.mOutboxBlockMillis);
+
+    /** Queues a reply string (or any message) for this client. */
+    public void send(Object obj) throws IOException {
+        if (mOutbox.isClosed()) {
+            throw new IOException("session closed");
+        }
+        // the outbox holds its own reference to a shared frame
+        if (obj instanceof Frame) {
+            ((Frame) obj).retain();
+        }
+        if (!mOutbox.offer(obj, mayBlock())) {
+            Frame.release(obj);
+            Logger.getInstance().warn(mNickname + " is too slow, disconnecting..");
+            lose();
+            throw new IOException("outbound queue full");
+        }
+        queued();
+    }
+
+    public int queueDepth() {
+        return mOutbox.size();
+    }
+
+    public long droppedCount() {
+        return mOutbox.mDropped.get();
+    }
+
+    /** Whether this connection can carry DEFLATED frames. */
+    protected boolean canDeflate() {
+        return false;
+    }
+
+    /** Whether send may wait for room in the calling thread. */
+    protected boolean mayBlock() {
+        return true;
+    }
+
+    /** Closes the connection and forgets the session (ChatProtocol.lost). */
+    protected void lose() {
+        close();
+        ChatProtocol.lost(this);
+    }
+
+    /** Wakes the writer after something was queued. */
+    protected abstract void queued();
+
+    public abstract void close();
+}
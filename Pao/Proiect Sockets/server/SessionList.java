@@ -0,0 +1,80 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copy-on-write list of logged in sessions, tuned for read-mostly
+ * fan-out. Readers iterate an immutable array snapshot without any lock,
+ * so a broadcast never sees a ConcurrentModificationException and never
+ * waits for a join or leave. Writers copy the array and publish it with a
+ * CAS, retrying if another writer got there first; no monitor is taken,
+ * so virtual threads are not pinned either.
+ */
+public class SessionList implements Iterable<Session>
+{
+    private static final Session[] EMPTY = new Session[0];
+
+    private AtomicReference<Session[]> mSnapshot = new AtomicReference<Session[]>(EMPTY);
+
+    public void add(Session session) {
+        Session[] current;
+        Session[] next;
+        do {
+            current = mSnapshot.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = session;
+        } while (!mSnapshot.compareAndSet(current, next));
+    }
+
+    public void remove(Session session) {
+        Session[] current;
+        Session[] next;
+        do {
+            current = mSnapshot.get();
+            int at = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == session) {
+                    at = i;
+                    break;
+                }
+            }
+            if (at < 0) {
+                return;
+            }
+            next = new Session[current.length - 1];
+            System.arraycopy(current, 0, next, 0, at);
+            System.arraycopy(current, at + 1, next, at, current.length - at - 1);
+        } while (!mSnapshot.compareAndSet(current, next));
+    }
+
+    /** The current members; never modified, safe to keep and iterate. */
+    public Session[] snapshot() {
+        return mSnapshot.get();
+    }
+
+    public int size() {
+        return mSnapshot.get().length;
+    }
+
+    @Override
+    public Iterator<Session> iterator() {
+        final Session[] items = mSnapshot.get();
+        return new Iterator<Session>() {
+            int mNext = 0;
+
+            public boolean hasNext() {
+                return mNext < items.length;
+            }
+
+            public Session next() {
+                if (mNext >= items.length) {
+                    throw new NoSuchElementException();
+                }
+                return items[mNext++];
+            }
+        };
+    }
+}